@@ -0,0 +1,84 @@
+package agents.fraudagent;
+
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fake of the Pub/Sub Publish RPC that runs inside the process. Each call
+ * succeeds after a fixed delay that stands in for the network round trip.
+ * Used to compare publishing strategies without the emulator or a project.
+ */
+public class InProcessPubSub implements AutoCloseable {
+
+  private static final MethodDescriptor<PublishRequest, PublishResponse> PUBLISH =
+      MethodDescriptor.<PublishRequest, PublishResponse>newBuilder()
+          .setType(MethodDescriptor.MethodType.UNARY)
+          .setFullMethodName(MethodDescriptor.generateFullMethodName("google.pubsub.v1.Publisher", "Publish"))
+          .setRequestMarshaller(ProtoUtils.marshaller(PublishRequest.getDefaultInstance()))
+          .setResponseMarshaller(ProtoUtils.marshaller(PublishResponse.getDefaultInstance()))
+          .build();
+
+  private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor();
+  private final Server server;
+  private final ManagedChannel channel;
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong messages = new AtomicLong();
+
+  public InProcessPubSub(long latencyMs) throws IOException {
+    String name = InProcessServerBuilder.generateName();
+    ServerServiceDefinition service = ServerServiceDefinition.builder("google.pubsub.v1.Publisher")
+        .addMethod(PUBLISH, ServerCalls.asyncUnaryCall((request, observer) -> {
+          requests.incrementAndGet();
+          PublishResponse.Builder response = PublishResponse.newBuilder();
+          for (int i = 0; i < request.getMessagesCount(); i++) {
+            response.addMessageIds(String.valueOf(messages.incrementAndGet()));
+          }
+          responder.schedule(() -> {
+            observer.onNext(response.build());
+            observer.onCompleted();
+          }, latencyMs, TimeUnit.MILLISECONDS);
+        }))
+        .build();
+    server = InProcessServerBuilder.forName(name).addService(service).build().start();
+    channel = InProcessChannelBuilder.forName(name).build();
+  }
+
+  public TransportChannelProvider channelProvider() {
+    return FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel));
+  }
+
+  /** Returns the number of Publish RPCs received. */
+  public long requestCount() {
+    return requests.get();
+  }
+
+  /** Returns the number of messages received across all RPCs. */
+  public long messageCount() {
+    return messages.get();
+  }
+
+  @Override
+  public void close() {
+    channel.shutdownNow();
+    server.shutdownNow();
+    responder.shutdownNow();
+  }
+}
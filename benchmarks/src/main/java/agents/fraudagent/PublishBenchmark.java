@@ -0,0 +1,91 @@
+package agents.fraudagent;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.TopicName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old blocking publish, which waited for every message, with
+ * {@link RecordPublisher} against an in-process fake of Pub/Sub whose RPCs
+ * take a fixed time. Both publish the same records from the same number of
+ * threads, like concurrent tool calls would.
+ *
+ * <p>Usage: java -cp benchmarks.jar agents.fraudagent.PublishBenchmark
+ * [messages] [threads] [rpc latency ms]
+ */
+public class PublishBenchmark {
+  private static final String TOPIC = "projects/benchmark/topics/augmented-transactions";
+  private static final String RECORD = "{\"credit_card_number\": \"4200000000000042\", \"receiver\": \"Target\", "
+      + "\"amount\": 42.5, \"ip_address\": \"68.45.25.58\", \"timestamp\": \"2025-09-18T11:47:02\", "
+      + "\"fraud_likelihood\": 0.1, \"fraud_reason\": \"No fraud indicators\"}";
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    long latencyMs = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+    System.out.printf("%-10s %-10s %-8s %-12s %-10s%n", "path", "messages", "rpcs", "elapsed_ms", "msg/s");
+    try (InProcessPubSub fake = new InProcessPubSub(latencyMs)) {
+      Publisher publisher = Publisher.newBuilder(TopicName.parse(TOPIC))
+          .setChannelProvider(fake.channelProvider())
+          .setCredentialsProvider(NoCredentialsProvider.create())
+          .build();
+      long start = System.nanoTime();
+      runOnThreads(messages, threads, () -> {
+        publisher.publish(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(RECORD)).build()).get();
+        return null;
+      });
+      report("blocking", messages, fake.requestCount(), start);
+      publisher.shutdown();
+      publisher.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    try (InProcessPubSub fake = new InProcessPubSub(latencyMs)) {
+      RecordPublisher recordPublisher = new RecordPublisher(fake.channelProvider(), NoCredentialsProvider.create());
+      List<ApiFuture<String>> results = new ArrayList<>(messages);
+      long start = System.nanoTime();
+      runOnThreads(messages, threads, () -> {
+        ApiFuture<String> result = recordPublisher.publish(TOPIC, RECORD);
+        synchronized (results) {
+          results.add(result);
+        }
+        return null;
+      });
+      long returnedMs = (System.nanoTime() - start) / 1_000_000;
+      for (ApiFuture<String> result : results) {
+        result.get();
+      }
+      report("async", messages, fake.requestCount(), start);
+      System.out.println("async publish calls returned after " + returnedMs + " ms");
+      recordPublisher.shutdown();
+    }
+  }
+
+  private static void runOnThreads(int messages, int threads, java.util.concurrent.Callable<Void> publish)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Void>> done = new ArrayList<>(messages);
+    for (int i = 0; i < messages; i++) {
+      done.add(executor.submit(publish));
+    }
+    for (Future<Void> future : done) {
+      future.get();
+    }
+    executor.shutdown();
+  }
+
+  private static void report(String path, int messages, long rpcs, long startNanos) {
+    long elapsedMs = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+    System.out.printf("%-10s %-10d %-8d %-12d %-10.0f%n", path, messages, rpcs, elapsedMs, messages * 1000.0 / elapsedMs);
+  }
+}
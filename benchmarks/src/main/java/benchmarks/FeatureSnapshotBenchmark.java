@@ -0,0 +1,188 @@
+package benchmarks;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import features.FeatureStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of snapshotting the feature store and of restoring from a snapshot,
+ * for a population of cards with a few transactions each.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class FeatureSnapshotBenchmark {
+
+  private static final int TRANSACTIONS_PER_CARD = 3;
+  private static final int CHANGED_CARDS = 10_000;
+  private static final int RESTORED_CARDS = 100_000;
+
+  @State(Scope.Benchmark)
+  public static class Population {
+
+    @Param("1000000")
+    int cards;
+
+    Path directory;
+    Path snapshot;
+    String[] cardNumbers;
+    JsonObject[] transactions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      directory = Files.createTempDirectory("feature-snapshot-benchmark");
+      snapshot = directory.resolve("features.snapshot");
+      SplittableRandom random = new SplittableRandom(42);
+      cardNumbers = new String[cards];
+      transactions = new JsonObject[cards * TRANSACTIONS_PER_CARD];
+      for (int card = 0; card < cards; card++) {
+        cardNumbers[card] = String.valueOf(4_000_000_000_000_000L + card);
+        for (int i = 0; i < TRANSACTIONS_PER_CARD; i++) {
+          JsonObject transaction = new JsonObject();
+          transaction.addProperty("credit_card_number", cardNumbers[card]);
+          transaction.addProperty("receiver", "Store " + random.nextInt(500));
+          transaction.addProperty("amount", Math.round(random.nextDouble(1, 500) * 100) / 100.0);
+          transaction.addProperty("ip_address", random.nextInt(1, 224) + "." + random.nextInt(256) + "."
+              + random.nextInt(256) + "." + random.nextInt(1, 255));
+          transaction.addProperty("timestamp", String.format("2025-09-18T%02d:%02d:%02d", 10 + i, random.nextInt(60),
+              random.nextInt(60)));
+          transactions[card * TRANSACTIONS_PER_CARD + i] = transaction;
+        }
+      }
+      // A snapshot of the whole population, for the restore benchmarks.
+      FeatureStore store = populatedStore();
+      store.restoreFrom(snapshot).join();
+      store.snapshot();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      try (var files = Files.list(directory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+      Files.delete(directory);
+    }
+
+    FeatureStore newStore() {
+      return new FeatureStore(TimeUnit.HOURS.toMillis(1), 32, cards, 24 * 60);
+    }
+
+    FeatureStore populatedStore() {
+      FeatureStore store = newStore();
+      for (JsonObject transaction : transactions) {
+        store.record(transaction.get("credit_card_number").getAsString(), transaction);
+      }
+      return store;
+    }
+  }
+
+  /** A populated store that has not been snapshotted yet. */
+  @State(Scope.Benchmark)
+  public static class Unsaved {
+
+    FeatureStore store;
+    Path file;
+
+    @Setup(Level.Iteration)
+    public void setUp(Population population) throws IOException {
+      file = population.directory.resolve("full.snapshot");
+      Files.deleteIfExists(file);
+      store = population.populatedStore();
+      store.restoreFrom(file).join();
+    }
+  }
+
+  /** A snapshotted store in which some cards have changed since. */
+  @State(Scope.Benchmark)
+  public static class Changed {
+
+    FeatureStore store;
+    Path file;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp(Population population) throws IOException {
+      file = population.directory.resolve("incremental.snapshot");
+      Files.deleteIfExists(file);
+      store = population.populatedStore();
+      store.restoreFrom(file).join();
+      store.snapshot();
+    }
+
+    @Setup(Level.Invocation)
+    public void change(Population population) {
+      for (int i = 0; i < CHANGED_CARDS; i++) {
+        JsonObject transaction = population.transactions[(next++ % population.cards) * TRANSACTIONS_PER_CARD];
+        store.record(transaction.get("credit_card_number").getAsString(), transaction);
+      }
+    }
+  }
+
+  /** An empty store restoring from the population's snapshot. */
+  @State(Scope.Benchmark)
+  public static class Restoring {
+
+    FeatureStore store;
+    int next;
+
+    @Setup(Level.Iteration)
+    public void setUp(Population population) {
+      store = population.newStore();
+      store.restoreFrom(population.snapshot).join();
+      next = 0;
+    }
+  }
+
+  /** Writes every card, as the first snapshot after a start does. */
+  @Benchmark
+  public void writeFull(Unsaved unsaved) throws IOException {
+    unsaved.store.snapshot();
+  }
+
+  /** Appends the cards changed since the last snapshot. */
+  @Benchmark
+  @Measurement(iterations = 5)
+  public void writeChanged(Changed changed) throws IOException {
+    changed.store.snapshot();
+  }
+
+  /** Maps and indexes the snapshot, after which the store is fully usable. */
+  @Benchmark
+  public long restoreIndex(Population population) {
+    FeatureStore store = population.newStore();
+    store.restoreFrom(population.snapshot).join();
+    return store.size();
+  }
+
+  /** Records a transaction for a card seen for the first time since the restart, which restores it. */
+  @Benchmark
+  @Warmup(iterations = 2, batchSize = RESTORED_CARDS)
+  @Measurement(iterations = 5, batchSize = RESTORED_CARDS)
+  public Object recordRestoredCard(Restoring restoring, Population population) {
+    JsonObject transaction = population.transactions[restoring.next++ * TRANSACTIONS_PER_CARD + 2];
+    return restoring.store.record(transaction.get("credit_card_number").getAsString(), transaction);
+  }
+}
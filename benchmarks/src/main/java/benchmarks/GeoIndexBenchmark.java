@@ -0,0 +1,128 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import geo.GeoIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup latency and build time of the IP-to-country index, over a synthetic
+ * CSV with about as many IPv4 ranges as the free country databases have.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GeoIndexBenchmark {
+
+  private static final int ADDRESSES = 4096;
+
+  @Param("600000")
+  int ranges;
+
+  Path directory;
+  Path csv;
+  GeoIndex index;
+  int[] addresses;
+  String[] dottedAddresses;
+  int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("geo-benchmark");
+    csv = directory.resolve("ranges.csv");
+    writeCsv(csv, ranges, new SplittableRandom(42));
+    index = GeoIndex.forCsv(csv);
+
+    SplittableRandom random = new SplittableRandom(7);
+    addresses = new int[ADDRESSES];
+    dottedAddresses = new String[ADDRESSES];
+    for (int i = 0; i < ADDRESSES; i++) {
+      addresses[i] = random.nextInt();
+      dottedAddresses[i] = (addresses[i] >>> 24) + "." + ((addresses[i] >>> 16) & 0xff) + "."
+          + ((addresses[i] >>> 8) & 0xff) + "." + (addresses[i] & 0xff);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (var files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public String lookupInt() {
+    return index.country(addresses[next++ & (ADDRESSES - 1)]);
+  }
+
+  /** Includes parsing the dotted address, as enrichment does. */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public String lookupDotted() {
+    return index.country(dottedAddresses[next++ & (ADDRESSES - 1)]);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public int build() throws IOException {
+    Path rebuilt = directory.resolve("rebuilt.idx");
+    GeoIndex.build(csv, rebuilt);
+    return GeoIndex.open(rebuilt).size();
+  }
+
+  /** Opening an already built index, as every start after the first does. */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public int open() throws IOException {
+    return GeoIndex.forCsv(csv).size();
+  }
+
+  /** Writes ranges of random sizes that tile the IPv4 space, as dotted addresses. */
+  private static void writeCsv(Path csv, int ranges, SplittableRandom random) throws IOException {
+    long step = (1L << 32) / ranges;
+    try (BufferedWriter writer = Files.newBufferedWriter(csv)) {
+      writer.write("ip_start,ip_end,country\n");
+      long start = 0;
+      for (int i = 0; i < ranges && start < (1L << 32); i++) {
+        long end = i == ranges - 1 ? (1L << 32) - 1 : Math.min((1L << 32) - 1, start + random.nextLong(1, 2 * step));
+        String country = "" + (char) ('A' + random.nextInt(16)) + (char) ('A' + random.nextInt(16));
+        writer.write(dotted(start) + "," + dotted(end) + "," + country + "\n");
+        start = end + 1;
+      }
+    }
+  }
+
+  private static String dotted(long address) {
+    return (address >>> 24) + "." + ((address >>> 16) & 0xff) + "." + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+  }
+}
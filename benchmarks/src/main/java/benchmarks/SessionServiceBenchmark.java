@@ -0,0 +1,91 @@
+package benchmarks;
+
+import com.google.adk.sessions.Session;
+
+import io.reactivex.rxjava3.core.Single;
+
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BoundedSessionService;
+
+/**
+ * Session lookups and throwaway sessions on one session service shared by
+ * several threads, as requests for different cards use it concurrently.
+ */
+@Fork(3)
+@Threads(4)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class SessionServiceBenchmark {
+
+  private static final String APP_NAME = "FraudDetector";
+
+  @State(Scope.Benchmark)
+  public static class Sessions {
+
+    @Param("10000")
+    int cards;
+
+    BoundedSessionService service;
+    String[] cardNumbers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      service = new BoundedSessionService(100_000, 2_000_000, 40, TimeUnit.HOURS.toSeconds(6));
+      cardNumbers = new String[cards];
+      for (int i = 0; i < cards; i++) {
+        cardNumbers[i] = String.valueOf(4_200_000_000_000_000L + i);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Cards {
+
+    SplittableRandom random;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      random = new SplittableRandom(Thread.currentThread().getId());
+    }
+
+    String next(Sessions sessions) {
+      return sessions.cardNumbers[random.nextInt(sessions.cardNumbers.length)];
+    }
+  }
+
+  /** Finds the card's session, creating it if needed, as scoring in the card's session does. */
+  @Benchmark
+  public Session getOrCreateSession(Sessions sessions, Cards cards) {
+    String card = cards.next(sessions);
+    return sessions.service.getSession(APP_NAME, card, card, Optional.empty())
+        .switchIfEmpty(Single.defer(() -> sessions.service.createSession(APP_NAME, card, null, card)))
+        .blockingGet();
+  }
+
+  /** Creates and deletes a session, as scoring with context compaction does. */
+  @Benchmark
+  public Session createAndDeleteSession(Sessions sessions, Cards cards) {
+    String card = cards.next(sessions);
+    Session session = sessions.service.createSession(APP_NAME, card, null, null).blockingGet();
+    sessions.service.deleteSession(APP_NAME, card, session.id()).blockingAwait();
+    return session;
+  }
+}
@@ -0,0 +1,67 @@
+package data_generator;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generating one transaction, both as the one-a-second publisher does, by
+ * building an event and serializing it with Gson, and as the generator
+ * threads do, by encoding it straight into a reusable buffer. It lives in the
+ * generator's package to reach its package-private classes.
+ */
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class TransactionGeneratorBenchmark {
+
+    private static final int RECEIVERS = 300;
+
+    /** A generator thread's worker, the only one, over a population of the given size. */
+    @State(Scope.Thread)
+    public static class Worker {
+
+        @Param("1000000")
+        int cards;
+
+        GeneratorWorker worker;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            CardPopulation population = new CardPopulation(cards, RECEIVERS);
+            byte[][] receivers = new byte[RECEIVERS][];
+            for (int i = 0; i < RECEIVERS; i++) {
+                receivers[i] = TransactionEncoder.jsonString("Receiver & Co. #" + i);
+            }
+            // No sink: the benchmark stops short of writing.
+            worker = new GeneratorWorker(0, 1, population, receivers, new SplittableRandom(42), null, null, 0, 0,
+                    1_758_196_022_814L, false);
+        }
+    }
+
+    /** Draws from the publisher's fixed population of 10,000 cards, so it takes no cards parameter. */
+    @Benchmark
+    public String nextEventAsJson() {
+        return TransactionGenerator.toJson(TransactionGenerator.nextEvent());
+    }
+
+    /** Generates a transaction as a generator thread does, short of handing it to the sink. */
+    @Benchmark
+    public int encode(Worker worker) {
+        return worker.worker.encodeNext();
+    }
+}
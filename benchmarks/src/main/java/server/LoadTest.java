@@ -0,0 +1,70 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import config.Config;
+
+/**
+ * Runs the server in-process against the stub model at increasing limits on
+ * the transactions scored at once and prints the throughput reached at each. Since the stub model
+ * only waits, throughput should grow roughly linearly with concurrency.
+ *
+ * <p>Usage: java -cp benchmarks.jar server.LoadTest [requests per level]
+ */
+public class LoadTest {
+    private static final int[] CONCURRENCY_LEVELS = {1, 4, 16, 64};
+    private static final int CARD_COUNT = 1000;
+
+    public static void main(String[] args) throws Exception {
+        // Must be set before the agent is first loaded.
+        System.setProperty("FRAUD_MODEL", "stub");
+        System.setProperty("PRESCORE_ENABLED", "false");
+        System.setProperty("STUB_MODEL_LATENCY_MS", Config.getString("STUB_MODEL_LATENCY_MS", "200"));
+        // Transactions repeat every CARD_COUNT requests; each must be scored.
+        System.setProperty("VERDICT_CACHE_SIZE", "0");
+        int requestsPerLevel = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+
+        HttpClient client = HttpClient.newHttpClient();
+        System.out.printf("%-12s %-10s %-12s %-10s%n", "concurrency", "requests", "elapsed_ms", "req/s");
+        for (int concurrency : CONCURRENCY_LEVELS) {
+            HttpServer server = Server.start(0, concurrency, requestsPerLevel);
+            try {
+                URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/message");
+                long start = System.nanoTime();
+                List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+                for (int i = 0; i < requestsPerLevel; i++) {
+                    HttpRequest request = HttpRequest.newBuilder(uri)
+                            .POST(HttpRequest.BodyPublishers.ofString(transaction(i)))
+                            .build();
+                    responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+                }
+                int failures = 0;
+                for (CompletableFuture<HttpResponse<String>> response : responses) {
+                    if (response.join().statusCode() != 200) {
+                        failures++;
+                    }
+                }
+                long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+                System.out.printf("%-12d %-10d %-12d %-10.1f%s%n", concurrency, requestsPerLevel, elapsedMs,
+                        requestsPerLevel * 1000.0 / elapsedMs, failures == 0 ? "" : " (" + failures + " failed)");
+            } finally {
+                server.stop(0);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static String transaction(int i) {
+        String card = String.valueOf(4200_0000_0000_0000L + i % CARD_COUNT);
+        return "{\"credit_card_number\": \"" + card + "\", \"receiver\": \"Target\", \"amount\": 42.5, "
+                + "\"ip_address\": \"68.45.25.58\", \"timestamp\": \"2025-09-18T11:47:02\"}";
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import agents.fraudagent.StubLlm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Drives one card through a growing number of transactions against the stub
+ * model, with and without context compaction, and prints the size of the
+ * prompt and the time taken to score the last transaction at each history
+ * length.
+ *
+ * <p>Usage: java -cp benchmarks.jar server.PromptSizeBenchmark
+ */
+public class PromptSizeBenchmark {
+  private static final int[] HISTORY_LENGTHS = {1, 10, 50, 100, 200};
+
+  public static void main(String[] args) {
+    // Must be set before the agent is first loaded.
+    System.setProperty("FRAUD_MODEL", "stub");
+    System.setProperty("STUB_MODEL_LATENCY_MS", "0");
+    System.setProperty("PRESCORE_ENABLED", "false");
+    System.setProperty("SESSION_MAX_EVENTS", "100000");
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    run(executor, false);
+    System.out.printf("%-12s %-8s %-14s %-10s%n", "compaction", "history", "prompt_chars", "latency_us");
+    run(executor, true);
+    executor.shutdown();
+  }
+
+  /** Runs every configuration once, printing the results if asked to. */
+  private static void run(ExecutorService executor, boolean print) {
+    for (boolean compaction : new boolean[] {false, true}) {
+      System.setProperty("CONTEXT_COMPACTION", String.valueOf(compaction));
+      for (int length : HISTORY_LENGTHS) {
+        AgentCaller agentCaller = new AgentCaller(executor);
+        for (int i = 0; i < length - 1; i++) {
+          agentCaller.executeRequest(transaction(i));
+        }
+        long start = System.nanoTime();
+        agentCaller.executeRequest(transaction(length));
+        long latencyUs = (System.nanoTime() - start) / 1_000;
+        if (print) {
+          System.out.printf("%-12s %-8d %-14d %-10d%n", compaction, length, StubLlm.lastPromptChars(), latencyUs);
+        }
+      }
+    }
+  }
+
+  private static String transaction(int i) {
+    return "{\"credit_card_number\": \"4200000000000042\", \"receiver\": \"Target\", \"amount\": "
+        + (10 + i % 90) + ".25, \"ip_address\": \"68.45.25.58\", \"timestamp\": \"2025-09-18T11:47:"
+        + String.format("%02d", i % 60) + "\"}";
+  }
+}
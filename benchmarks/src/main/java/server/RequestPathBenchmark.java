@@ -0,0 +1,203 @@
+package server;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import agents.fraudagent.RecordPublisher;
+import scoring.RuleBasedPreScorer;
+import scoring.ScoringTier;
+
+/**
+ * The steps of scoring a /message request, against the stub model with no
+ * delay: parsing the body, scoring it end to end with and without the model,
+ * encoding the response and building the Pub/Sub message for the scored
+ * record. It lives in the server's package to reach MessageHandler.
+ */
+// Scoring with the model takes about ten iterations to be compiled on one CPU.
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class RequestPathBenchmark {
+
+  private static final int CARDS = 4096;
+  // Enough that an iteration scoring them does not wrap around and send a
+  // card back in time; each iteration starts from the first with fresh cards.
+  private static final int TRANSACTIONS = 1 << 18;
+  private static final int MINUTES_APART = 15;
+
+  static {
+    // Read when the agent and the caller are first loaded.
+    System.setProperty("FRAUD_MODEL", "stub");
+    System.setProperty("STUB_MODEL_LATENCY_MS", "0");
+    System.setProperty("TRANSACTIONS_TOPIC", "");
+    System.setProperty("COMPROMISED_CARDS_TOPIC", "");
+    System.setProperty("FEATURE_SNAPSHOT_PATH", "");
+    // Transactions repeat once the set is used up; each must be scored.
+    System.setProperty("VERDICT_CACHE_SIZE", "0");
+  }
+
+  @State(Scope.Thread)
+  public static class Transactions {
+
+    String[] messages;
+    String[] results;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      messages = new String[TRANSACTIONS];
+      results = new String[TRANSACTIONS];
+      for (int i = 0; i < TRANSACTIONS; i++) {
+        int card = i % CARDS;
+        int minute = i / CARDS * MINUTES_APART;
+        // Ordinary payments from each card's usual address, spaced so that
+        // none of them looks like a burst.
+        String message = "{\"credit_card_number\": \"" + (4_200_000_000_000_000L + card)
+            + "\", \"receiver\": \"Target\", \"amount\": " + (20 + card % 50) + "." + (10 + i / CARDS % 90)
+            + ", \"ip_address\": \"68.45." + (card >>> 8) + "." + (card & 0xff)
+            + "\", \"timestamp\": \"2025-09-" + String.format("%02dT%02d:%02d:00", 1 + minute / (24 * 60),
+                minute / 60 % 24, minute % 60)
+            + "\"}";
+        messages[i] = message;
+        JsonObject result = JsonParser.parseString(message).getAsJsonObject();
+        result.addProperty("fraud_likelihood", 0.1);
+        result.addProperty("fraud_reason", "No fraud indicators: amount and IP address consistent with card history");
+        results[i] = result.toString();
+      }
+    }
+
+    @Setup(Level.Iteration)
+    public void rewind() {
+      next = 0;
+    }
+
+    int next() {
+      int index = next;
+      next = (index + 1) & (TRANSACTIONS - 1);
+      return index;
+    }
+  }
+
+  /** A caller whose rules tier answers the transactions without the model. */
+  @State(Scope.Benchmark)
+  public static class LocalCaller {
+
+    ExecutorService workers;
+    AgentCaller caller;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Setup(Level.Iteration)
+    public void newCaller() {
+      caller = new AgentCaller(workers, List.of(ScoringTier.local("rules", new RuleBasedPreScorer())));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      workers.shutdownNow();
+    }
+  }
+
+  /** A caller that sends every transaction to the stub model. */
+  @State(Scope.Benchmark)
+  public static class ModelCaller {
+
+    ExecutorService workers;
+    AgentCaller caller;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Setup(Level.Iteration)
+    public void newCaller() {
+      caller = new AgentCaller(workers, List.of());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      workers.shutdownNow();
+    }
+  }
+
+  /** Parses the body as AgentCaller does before scheduling it on the card's lane. */
+  @Benchmark
+  public JsonObject parseTransaction(Transactions transactions) {
+    JsonObject transaction = JsonParser.parseString(transactions.messages[transactions.next()]).getAsJsonObject();
+    transaction.get("credit_card_number").getAsString();
+    return transaction;
+  }
+
+  /**
+   * Reads only the card number, for comparison: what parsing costs when the
+   * rest of the transaction is not needed.
+   */
+  @Benchmark
+  public String readCardNumber(Transactions transactions) throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(transactions.messages[transactions.next()]))) {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        if (reader.nextName().equals("credit_card_number")) {
+          return reader.nextString();
+        }
+        reader.skipValue();
+      }
+      return null;
+    }
+  }
+
+  @Benchmark
+  public String executeRequestLocally(LocalCaller local, Transactions transactions) {
+    return local.caller.executeRequest(transactions.messages[transactions.next()]);
+  }
+
+  @Benchmark
+  public String executeRequestWithModel(ModelCaller model, Transactions transactions) {
+    return model.caller.executeRequest(transactions.messages[transactions.next()]);
+  }
+
+  /** Encodes the scored transaction with MessageHandler and writes it to a stream that discards it. */
+  @Benchmark
+  public int encodeResponse(Transactions transactions) throws IOException {
+    Server.MessageHandler.Response response =
+        Server.MessageHandler.encode(transactions.results[transactions.next()], null);
+    try (OutputStream os = OutputStream.nullOutputStream()) {
+      os.write(response.body());
+    }
+    return response.status();
+  }
+
+  @Benchmark
+  public PubsubMessage buildPublishMessage(Transactions transactions) {
+    return RecordPublisher.toMessage(transactions.results[transactions.next()]);
+  }
+}
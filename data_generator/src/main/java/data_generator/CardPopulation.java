@@ -0,0 +1,141 @@
+package data_generator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.random.RandomGenerator;
+
+/**
+ * The simulated cards and what the generator remembers about each of them,
+ * held in primitive arrays indexed by card id. A card costs 10 bytes however
+ * many there are, so 50 million cards take 500 MB and are allocated in one
+ * go at startup. Card numbers and IP addresses are not stored as strings but
+ * derived when a transaction is written.
+ *
+ * <p>Per-card state starts out empty and is filled in the first time a card
+ * is used. A card's state must only be touched by one thread at a time; the
+ * generator gives each thread its own share of the cards.
+ */
+class CardPopulation {
+
+    private static final byte[] VISA = "4200".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MASTERCARD = "5500".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AMEX = "3700".getBytes(StandardCharsets.US_ASCII);
+    private static final long SIXTEEN_DIGIT_SUFFIXES = 1_000_000_000_000L;
+    private static final long AMEX_SUFFIXES = 100_000_000_000L;
+    // Odd and not a multiple of 5, so id -> id * MULTIPLIER mod 10^n is a
+    // bijection and no two ids share a number.
+    private static final long MULTIPLIER = 2_654_435_761L;
+    private static final long OFFSET = 48_271_104_863L;
+
+    // Chance that a normal transaction goes to the card's previous receiver.
+    private static final double REPEAT_RECEIVER_PROBABILITY = 0.25;
+    private static final double MIN_TYPICAL_AMOUNT = 10.0;
+    private static final double MAX_TYPICAL_AMOUNT = 300.0;
+
+    private final int size;
+    private final int receivers;
+    // 0 until the card is first used.
+    private final int[] homeIps;
+    // Receiver index + 1, or 0 if the card has not paid anyone yet.
+    private final short[] lastReceivers;
+    // The card's typical payment amount, or 0 until first used.
+    private final float[] typicalAmounts;
+
+    CardPopulation(int size, int receivers) {
+        if (receivers >= Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many receivers: " + receivers);
+        }
+        this.size = size;
+        this.receivers = receivers;
+        this.homeIps = new int[size];
+        this.lastReceivers = new short[size];
+        this.typicalAmounts = new float[size];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Returns the bytes of heap the per-card state takes. */
+    long stateBytes() {
+        return (long) size * (Integer.BYTES + Short.BYTES + Float.BYTES);
+    }
+
+    /** Returns the first four digits, which give the card type: 40% Visa, 40% Mastercard, 20% Amex. */
+    byte[] prefix(int card) {
+        int type = (int) Long.remainderUnsigned(mix(card), 10);
+        return type < 4 ? VISA : type < 8 ? MASTERCARD : AMEX;
+    }
+
+    /** Returns the number of digits after the prefix: 12, or 11 for Amex. */
+    int suffixDigits(int card) {
+        return prefix(card) == AMEX ? 11 : 12;
+    }
+
+    /** Returns the digits after the prefix as a number, to be zero-padded to suffixDigits. */
+    long suffix(int card) {
+        long range = prefix(card) == AMEX ? AMEX_SUFFIXES : SIXTEEN_DIGIT_SUFFIXES;
+        return Math.floorMod(card * MULTIPLIER + OFFSET, range);
+    }
+
+    String cardNumber(int card) {
+        String digits = Long.toString(suffix(card));
+        int digitCount = suffixDigits(card);
+        StringBuilder number = new StringBuilder(4 + digitCount)
+                .append(new String(prefix(card), StandardCharsets.US_ASCII));
+        for (int i = digits.length(); i < digitCount; i++) {
+            number.append('0');
+        }
+        return number.append(digits).toString();
+    }
+
+    /**
+     * Returns the IP address the card normally pays from, packed into an int,
+     * and occasionally moves the card to a new one.
+     */
+    int homeIp(int card, RandomGenerator random, double changeProbability) {
+        if (homeIps[card] == 0 || random.nextDouble() < changeProbability) {
+            homeIps[card] = randomIp(random);
+        }
+        return homeIps[card];
+    }
+
+    /** Picks a receiver for a normal payment, favoring the one the card paid last. */
+    int receiver(int card, RandomGenerator random) {
+        int last = lastReceivers[card] - 1;
+        int receiver = last >= 0 && random.nextDouble() < REPEAT_RECEIVER_PROBABILITY
+                ? last
+                : random.nextInt(receivers);
+        lastReceivers[card] = (short) (receiver + 1);
+        return receiver;
+    }
+
+    /** Picks an amount for a normal payment around the card's typical amount. */
+    long amountCents(int card, RandomGenerator random) {
+        if (typicalAmounts[card] == 0) {
+            typicalAmounts[card] = (float) random.nextDouble(MIN_TYPICAL_AMOUNT, MAX_TYPICAL_AMOUNT);
+        }
+        double amount = typicalAmounts[card] * random.nextDouble(0.5, 1.5);
+        return Math.round(Math.max(1.0, Math.min(500.0, amount)) * 100.0);
+    }
+
+    /** Returns a random IPv4 address packed into an int; never 0. */
+    static int randomIp(RandomGenerator random) {
+        int ip;
+        do {
+            ip = random.nextInt();
+        } while (ip == 0);
+        return ip;
+    }
+
+    static String ipToString(int ip) {
+        return (ip >>> 24) + "." + ((ip >>> 16) & 0xff) + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+    }
+
+    // SplitMix64's finalizer; spreads consecutive ids over the card types.
+    private static long mix(long value) {
+        long z = value + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
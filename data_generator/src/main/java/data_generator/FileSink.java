@@ -0,0 +1,74 @@
+package data_generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes transactions to a local file as newline-delimited JSON. Each thread
+ * fills its own buffer and appends it to the file whole, so a thread's
+ * transactions, and so each card's, appear in the order they were generated.
+ */
+class FileSink implements TransactionSink {
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    private final FileChannel channel;
+    private final LongAdder written = new LongAdder();
+
+    FileSink(Path path) throws IOException {
+        channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public Writer newWriter() {
+        return new Writer() {
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            private long buffered;
+
+            @Override
+            public void write(int card, byte[] bytes, int length) throws IOException {
+                if (buffer.remaining() < length + 1) {
+                    flush();
+                }
+                if (buffer.remaining() < length + 1) {
+                    throw new IOException("Transaction of " + length + " bytes does not fit the write buffer");
+                }
+                buffer.put(bytes, 0, length).put((byte) '\n');
+                buffered++;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                buffer.flip();
+                synchronized (channel) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                buffer.clear();
+                written.add(buffered);
+                buffered = 0;
+            }
+        };
+    }
+
+    @Override
+    public long deliveredCount() {
+        return written.sum();
+    }
+
+    @Override
+    public long failedCount() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
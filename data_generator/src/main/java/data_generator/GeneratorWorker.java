@@ -0,0 +1,115 @@
+package data_generator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One generator thread. It owns every card whose index is congruent to its
+ * worker number modulo the number of workers, so each card's transactions
+ * come from a single thread and reach the sink in order. Each worker has its
+ * own random number generator and simulated clock, and only touches its own
+ * cards' entries in the shared card population.
+ *
+ * <p>Transactions follow the same distribution as
+ * {@link TransactionGenerator#nextEvent()}.
+ */
+class GeneratorWorker implements Runnable {
+
+    private final int worker;
+    private final int workers;
+    private final CardPopulation cards;
+    // Cards this worker owns: worker, worker + workers, worker + 2 * workers...
+    private final int ownedCards;
+    private final byte[][] receivers;
+    private final SplittableRandom random;
+    private final TransactionSink.Writer writer;
+    private final LongAdder generated;
+    // Nanoseconds between transactions, or 0 to go as fast as the sink allows.
+    private final long intervalNanos;
+    private final long limit;
+    private volatile boolean stopped;
+
+    private long simulatedTime;
+    private final TransactionEncoder encoder;
+
+    /**
+     * @param ratePerSecond transactions per second for this worker, or 0 for no limit
+     * @param limit transactions to generate before stopping, or 0 for no limit
+     * @param labelFraud whether to label each transaction with whether it is injected fraud
+     */
+    GeneratorWorker(int worker, int workers, CardPopulation cards, byte[][] receivers, SplittableRandom random,
+            TransactionSink.Writer writer, LongAdder generated, double ratePerSecond, long limit,
+            long simulatedStartTime, boolean labelFraud) {
+        this.worker = worker;
+        this.workers = workers;
+        this.cards = cards;
+        this.ownedCards = (cards.size() - worker + workers - 1) / workers;
+        this.receivers = receivers;
+        this.random = random;
+        this.writer = writer;
+        this.generated = generated;
+        this.intervalNanos = ratePerSecond > 0 ? (long) (1e9 / ratePerSecond) : 0;
+        this.limit = limit;
+        this.simulatedTime = simulatedStartTime;
+        this.encoder = new TransactionEncoder(labelFraud);
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            for (long n = 0; !stopped && (limit == 0 || n < limit); n++) {
+                if (intervalNanos > 0) {
+                    // Pace against the schedule rather than sleeping a fixed
+                    // time, so short oversleeps are made up for.
+                    long wait = start + n * intervalNanos - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                generateOne();
+                generated.increment();
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void generateOne() throws IOException {
+        int card = encodeNext();
+        writer.write(card, encoder.bytes(), encoder.length());
+    }
+
+    /** Generates the next transaction into the encoder and returns its card. */
+    int encodeNext() {
+        simulatedTime += random.nextLong(TransactionGenerator.MIN_TIME_INCREMENT_MS,
+                TransactionGenerator.MAX_TIME_INCREMENT_MS + 1);
+        int card = worker + random.nextInt(ownedCards) * workers;
+
+        int receiver;
+        long amountCents;
+        int ip;
+        boolean fraud = random.nextDouble() < TransactionGenerator.FRAUD_PROBABILITY;
+        if (fraud) {
+            receiver = random.nextInt(receivers.length);
+            amountCents = Math.round(random.nextDouble(
+                    TransactionGenerator.FRAUD_MIN_AMOUNT, TransactionGenerator.FRAUD_MAX_AMOUNT) * 100.0);
+            ip = CardPopulation.randomIp(random);
+        } else {
+            receiver = cards.receiver(card, random);
+            amountCents = cards.amountCents(card, random);
+            ip = cards.homeIp(card, random, TransactionGenerator.IP_CHANGE_PROBABILITY);
+        }
+
+        encoder.encode(cards, card, receivers[receiver], amountCents, ip, simulatedTime, fraud);
+        return card;
+    }
+}
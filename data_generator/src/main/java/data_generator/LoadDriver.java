@@ -0,0 +1,213 @@
+package data_generator;
+
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the fraud service's /message endpoint at a constant rate and reports
+ * throughput and latency.
+ *
+ * <p>The driver is open-loop: request i is due at start + i / rate whether or
+ * not earlier requests have been answered, and its latency is measured from
+ * when it was due rather than from when it was sent. A slow service therefore
+ * shows up as growing latency instead of a quietly lower send rate.
+ *
+ * <p>A card's transactions are sent in order, each once the previous one for
+ * the same card has been answered, so the service sees them in the order it
+ * would from an ordered subscription. Time spent waiting behind an earlier
+ * transaction of the same card counts towards latency.
+ *
+ * <p>Usage:
+ * <pre>
+ * java -cp target/TransactionGenerator.jar data_generator.LoadDriver \
+ *     [--url http://localhost:8080/message] [--rate 100] [--duration 60] \
+ *     [--warmup 10] [--file transactions.ndjson]
+ * </pre>
+ * Without --file, transactions are generated as the generator would publish
+ * them. With it, one JSON transaction per line is replayed until the file or
+ * the duration runs out.
+ */
+public class LoadDriver {
+
+    private final HttpClient client;
+    private final URI uri;
+    private final ExecutorService callbacks = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "load-driver-callback");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // The last request sent for each card that has one outstanding.
+    private final Map<String, CompletableFuture<Void>> lastByCard = new ConcurrentHashMap<>();
+
+    private final long[] latencies;
+    private final AtomicInteger recorded = new AtomicInteger();
+    private final AtomicLong ok = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    LoadDriver(URI uri, int maxRecorded) {
+        this.uri = uri;
+        this.latencies = new long[maxRecorded];
+        this.client = HttpClient.newBuilder()
+                .executor(callbacks)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Options.parse(args);
+        URI uri = URI.create(options.getOrDefault("url", "http://localhost:8080/message"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        long durationSeconds = Long.parseLong(options.getOrDefault("duration", "60"));
+        long warmupSeconds = Long.parseLong(options.getOrDefault("warmup", "10"));
+        String file = options.get("file");
+
+        long total = (long) (rate * (warmupSeconds + durationSeconds));
+        long warmup = (long) (rate * warmupSeconds);
+        Iterator<String> transactions = file == null ? generated() : replayed(Path.of(file));
+
+        System.out.printf("Sending %d transactions to %s at %.1f/s (%ds warm-up, %ds measured)%n",
+                total, uri, rate, warmupSeconds, durationSeconds);
+        LoadDriver driver = new LoadDriver(uri, (int) Math.min(Integer.MAX_VALUE - 8, total - warmup));
+        driver.run(transactions, rate, total, warmup);
+    }
+
+    void run(Iterator<String> transactions, double rate, long total, long warmup) throws InterruptedException {
+        long intervalNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long sent = 0;
+        long measuredStart = start + warmup * intervalNanos;
+        for (; sent < total && transactions.hasNext(); sent++) {
+            long due = start + sent * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String json = transactions.next();
+            send(json, cardOf(json), due, sent >= warmup);
+        }
+        long sendEnd = System.nanoTime();
+        // Each card's last request completes after all earlier ones for it.
+        for (CompletableFuture<Void> last : new ArrayList<>(lastByCard.values())) {
+            last.join();
+        }
+        long end = System.nanoTime();
+        report(sent - Math.min(sent, warmup), rate, sendEnd - measuredStart, end - measuredStart);
+        callbacks.shutdown();
+        callbacks.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /** Sends the transaction once the card's previous one has been answered. */
+    private void send(String json, String card, long dueNanos, boolean measured) {
+        // Only the sending thread adds entries, so the card's last request
+        // cannot change between the get and the put.
+        CompletableFuture<Void> previous = lastByCard.get(card);
+        CompletableFuture<Void> ready = previous == null ? CompletableFuture.completedFuture(null) : previous;
+        CompletableFuture<Void> done = ready.thenCompose(ignored -> post(json))
+                .handle((status, error) -> {
+                    record(status, error, dueNanos, measured);
+                    return null;
+                });
+        lastByCard.put(card, done);
+        // Forget the card once nothing is outstanding for it.
+        done.whenComplete((ignored, error) -> lastByCard.remove(card, done));
+    }
+
+    private CompletableFuture<Integer> post(String json) {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(2))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).thenApply(HttpResponse::statusCode);
+    }
+
+    private void record(Integer status, Throwable error, long dueNanos, boolean measured) {
+        long latency = System.nanoTime() - dueNanos;
+        if (!measured) {
+            return;
+        }
+        if (error == null && status == 200) {
+            ok.incrementAndGet();
+        } else if (error == null && status == 503) {
+            rejected.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        int slot = recorded.getAndIncrement();
+        if (slot < latencies.length) {
+            latencies[slot] = latency;
+        }
+    }
+
+    private void report(long measured, double rate, long sendNanos, long totalNanos) {
+        int count = Math.min(recorded.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.printf("Sent %d measured requests in %.1fs (target %.1f/s, achieved %.1f/s)%n",
+                measured, sendNanos / 1e9, rate, measured / (sendNanos / 1e9));
+        System.out.printf("Completed in %.1fs: %d ok, %d rejected (503), %d failed; %.1f ok/s%n",
+                totalNanos / 1e9, ok.get(), rejected.get(), failed.get(), ok.get() / (totalNanos / 1e9));
+        if (count == 0) {
+            return;
+        }
+        System.out.printf("Latency ms: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted[count - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static String cardOf(String json) {
+        try {
+            return JsonParser.parseString(json).getAsJsonObject().get("credit_card_number").getAsString();
+        } catch (RuntimeException e) {
+            // Not a transaction the service will accept; send it on its own.
+            return json;
+        }
+    }
+
+    private static Iterator<String> generated() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public String next() {
+                return TransactionGenerator.toJson(TransactionGenerator.nextEvent());
+            }
+        };
+    }
+
+    private static Iterator<String> replayed(Path file) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        return reader.lines().filter(line -> !line.isBlank()).iterator();
+    }
+}
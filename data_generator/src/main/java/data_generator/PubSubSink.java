@@ -0,0 +1,124 @@
+package data_generator;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.ProjectTopicName;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes transactions to Pub/Sub with the card number as ordering key.
+ * Batches are as large as Pub/Sub allows and flow control blocks the
+ * generator threads, rather than buffering without bound, when publishing
+ * falls behind.
+ *
+ * <p>With message ordering the client batches per ordering key, so with many
+ * cards most batches hold few messages; throughput then comes from many
+ * concurrent publish calls, which is why the executor is sized up.
+ */
+class PubSubSink implements TransactionSink {
+
+    private static final long BATCH_MAX_MESSAGES = 1000;
+    private static final long BATCH_MAX_BYTES = 5_000_000;
+    private static final Duration BATCH_DELAY = Duration.ofMillis(20);
+    private static final long MAX_OUTSTANDING_MESSAGES = 200_000;
+    private static final long MAX_OUTSTANDING_BYTES = 256_000_000;
+
+    private final Publisher publisher;
+    private final CardPopulation cards;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private boolean closed;
+
+    PubSubSink(ProjectTopicName topicName, String endpoint, int executorThreads, CardPopulation cards)
+            throws IOException {
+        this.cards = cards;
+        BatchingSettings batching = BatchingSettings.newBuilder()
+                .setElementCountThreshold(BATCH_MAX_MESSAGES)
+                .setRequestByteThreshold(BATCH_MAX_BYTES)
+                .setDelayThresholdDuration(BATCH_DELAY)
+                .setFlowControlSettings(FlowControlSettings.newBuilder()
+                        .setMaxOutstandingElementCount(MAX_OUTSTANDING_MESSAGES)
+                        .setMaxOutstandingRequestBytes(MAX_OUTSTANDING_BYTES)
+                        .setLimitExceededBehavior(LimitExceededBehavior.Block)
+                        .build())
+                .build();
+        publisher = Publisher.newBuilder(topicName)
+                .setEnableMessageOrdering(true)
+                .setEndpoint(endpoint)
+                .setBatchingSettings(batching)
+                .setExecutorProvider(InstantiatingExecutorProvider.newBuilder()
+                        .setExecutorThreadCount(executorThreads)
+                        .build())
+                .build();
+    }
+
+    @Override
+    public Writer newWriter() {
+        return new Writer() {
+            @Override
+            public void write(int card, byte[] bytes, int length) {
+                // The ordering key is the only per-message string created.
+                String cardNumber = cards.cardNumber(card);
+                PubsubMessage message = PubsubMessage.newBuilder()
+                        .setData(ByteString.copyFrom(bytes, 0, length))
+                        .setOrderingKey(cardNumber)
+                        .build();
+                ApiFutures.addCallback(publisher.publish(message), new ApiFutureCallback<String>() {
+                    @Override
+                    public void onSuccess(String messageId) {
+                        published.increment();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        failed.increment();
+                        // Publishing for a key stops after a failure until resumed.
+                        publisher.resumePublish(cardNumber);
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+
+            @Override
+            public void flush() {
+                // The publisher sends its batches on its own schedule.
+            }
+        };
+    }
+
+    @Override
+    public long deliveredCount() {
+        return published.sum();
+    }
+
+    @Override
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        publisher.shutdown();
+        try {
+            publisher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            // Stop waiting; the caller sees the interrupt.
+            Thread.currentThread().interrupt();
+        }
+    }
+}
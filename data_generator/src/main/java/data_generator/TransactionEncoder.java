@@ -0,0 +1,174 @@
+package data_generator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes transactions as single-line JSON into a reusable byte buffer. It
+ * produces the same fields as Gson does for a TransactionEvent without
+ * building the event, boxing numbers or creating strings, so encoding a
+ * transaction does not allocate once the buffer has grown to size.
+ *
+ * <p>Optionally it also labels each transaction with whether it is injected
+ * fraud, for offline evaluation of the service's scores.
+ *
+ * <p>Not thread-safe; each generator thread has its own.
+ */
+class TransactionEncoder {
+
+    private static final byte[] CARD = ascii("{\"credit_card_number\":\"");
+    private static final byte[] RECEIVER = ascii("\",\"receiver\":\"");
+    private static final byte[] AMOUNT = ascii("\",\"amount\":");
+    private static final byte[] IP = ascii(",\"ip_address\":\"");
+    private static final byte[] TIMESTAMP = ascii("\",\"timestamp\":\"");
+    private static final byte[] END = ascii("\"}");
+    private static final byte[] FRAUD_END = ascii("\",\"injected_fraud\":true}");
+    private static final byte[] NOT_FRAUD_END = ascii("\",\"injected_fraud\":false}");
+
+    private final boolean labelFraud;
+    private byte[] buffer = new byte[256];
+    private int length;
+
+    TransactionEncoder() {
+        this(false);
+    }
+
+    /** @param labelFraud whether to add an injected_fraud field */
+    TransactionEncoder(boolean labelFraud) {
+        this.labelFraud = labelFraud;
+    }
+
+    /** Returns the bytes of the last encoded transaction, valid up to length(). */
+    byte[] bytes() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Encodes a transaction for the given card. The receiver must already be
+     * escaped with {@link #jsonString}; the IP address is an IPv4 address
+     * packed into an int, most significant octet first.
+     */
+    void encode(CardPopulation cards, int card, byte[] receiver, long amountCents, int ipAddress,
+            long epochMillis, boolean fraud) {
+        length = 0;
+        put(CARD);
+        put(cards.prefix(card));
+        putDigits(cards.suffix(card), cards.suffixDigits(card));
+        put(RECEIVER);
+        put(receiver);
+        put(AMOUNT);
+        putLong(amountCents / 100);
+        put((byte) '.');
+        putDigits(amountCents % 100, 2);
+        put(IP);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            putLong((ipAddress >>> shift) & 0xff);
+            if (shift > 0) {
+                put((byte) '.');
+            }
+        }
+        put(TIMESTAMP);
+        putTimestamp(epochMillis);
+        put(!labelFraud ? END : fraud ? FRAUD_END : NOT_FRAUD_END);
+    }
+
+    /** Escapes a string for use inside a JSON string literal, as UTF-8. */
+    static byte[] jsonString(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the time in UTC as ISO_LOCAL_DATE_TIME would, e.g.
+     * 2025-09-18T11:47:02.814, with trailing zeros of the fraction left out.
+     */
+    private void putTimestamp(long epochMillis) {
+        long epochDay = Math.floorDiv(epochMillis, 86_400_000L);
+        long millisOfDay = Math.floorMod(epochMillis, 86_400_000L);
+
+        // Civil date from days since 1970-01-01 (Howard Hinnant's algorithm).
+        long z = epochDay + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putDigits(year, 4);
+        put((byte) '-');
+        putDigits(month, 2);
+        put((byte) '-');
+        putDigits(day, 2);
+        put((byte) 'T');
+        putDigits(millisOfDay / 3_600_000, 2);
+        put((byte) ':');
+        putDigits(millisOfDay / 60_000 % 60, 2);
+        put((byte) ':');
+        putDigits(millisOfDay / 1000 % 60, 2);
+        long millis = millisOfDay % 1000;
+        if (millis != 0) {
+            // Like the formatter, drop trailing zeros of the fraction.
+            int digits = 3;
+            while (millis % 10 == 0) {
+                millis /= 10;
+                digits--;
+            }
+            put((byte) '.');
+            putDigits(millis, digits);
+        }
+    }
+
+    private void putLong(long value) {
+        if (value >= 10) {
+            putLong(value / 10);
+        }
+        put((byte) ('0' + value % 10));
+    }
+
+    private void putDigits(long value, int digits) {
+        ensure(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[length + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buffer[length++] = b;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
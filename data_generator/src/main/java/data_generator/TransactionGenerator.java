@@ -10,23 +10,40 @@ import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.ProjectTopicName;
 import com.google.pubsub.v1.PubsubMessage;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Generates simulated credit card transactions and publishes them to Google
  * Cloud Pub/Sub with an ordering key.
  * This code was generated with Gemini.
+ *
+ * <p>Run without arguments it publishes one transaction a second. Given any
+ * of the options below it generates at a target rate across several threads
+ * instead, reporting progress every few seconds:
+ * <pre>
+ * --rate 50000        transactions per second in total; 0 for as fast as possible
+ * --threads 8         generator threads (default: available processors)
+ * --cards 50000000    cards to simulate (default 10000); each takes 10 bytes of heap
+ * --duration 60       seconds to run; 0 (the default) runs until stopped
+ * --output tx.ndjson  write newline-delimited JSON to this file instead of Pub/Sub
+ * --seed 42           seed for reproducible output
+ * --label-fraud true  add "injected_fraud": true or false to each transaction,
+ *                     for scoring offline with the service's server.Backtest
+ * </pre>
  */
 public class TransactionGenerator {
 
@@ -36,16 +53,16 @@ public class TransactionGenerator {
     private static final String ENDPOINT = "us-central1-pubsub.googleapis.com:443";
 
     // --- Fraud Injection Configuration ---
-    private static final double FRAUD_PROBABILITY = 0.02;
-    private static final double FRAUD_MIN_AMOUNT = 2000.0;
-    private static final double FRAUD_MAX_AMOUNT = 7000.0;
+    static final double FRAUD_PROBABILITY = 0.02;
+    static final double FRAUD_MIN_AMOUNT = 2000.0;
+    static final double FRAUD_MAX_AMOUNT = 7000.0;
 
     // --- Sticky IP Configuration ---
-    private static final double IP_CHANGE_PROBABILITY = 0.005; // 0.5%
+    static final double IP_CHANGE_PROBABILITY = 0.005; // 0.5%
 
     // --- Time Increment Configuration ---
-    private static final long MIN_TIME_INCREMENT_MS = 1000L; // 1 second
-    private static final long MAX_TIME_INCREMENT_MS = 3600000L; // 1 hour (60 * 60 * 1000)
+    static final long MIN_TIME_INCREMENT_MS = 1000L; // 1 second
+    static final long MAX_TIME_INCREMENT_MS = 3600000L; // 1 hour (60 * 60 * 1000)
 
     // --- Data Pool Generators ---
 
@@ -131,54 +148,17 @@ public class TransactionGenerator {
             "Sheetz", "Wawa", "The LEGO Group", "Mattel", "Hasbro", "The Walt Disney Company",
             "Paramount", "Warner Bros.", "Sony Pictures", "Universal Pictures");
 
-    // --- THIS IS THE FIX ---
-    // Initialize 'random' *before* it is used by generateCardNumbers.
     private static final Random random = new Random();
 
-    // Programmatic generation for CARD_NUMBERS is retained
-    private static final List<String> CARD_NUMBERS = generateCardNumbers(10000);
+    // Cards are identified by index; numbers and state live in the population.
+    private static final int DEFAULT_CARDS = 10000;
+    private static final CardPopulation POPULATION = new CardPopulation(DEFAULT_CARDS, RECEIVERS.size());
 
     private static final Gson gson = new Gson();
 
-    // Map to store the "home" IP for each credit card
-    private static final Map<String, String> cardIpMap = new HashMap<>();
-
     // Simulated Global Clock (as epoch milliseconds)
     private static long simulatedCurrentTime = System.currentTimeMillis() - (125400L * 60 * 1000);
 
-    /**
-     * Generates a random string of digits of a given length.
-     */
-    private static String generateRandomDigits(int length) {
-        StringBuilder sb = new StringBuilder(length);
-        for (int i = 0; i < length; i++) {
-            sb.append(random.nextInt(10));
-        }
-        return sb.toString();
-    }
-
-    /**
-     * Programmatically generates a list of fake credit card numbers.
-     */
-    private static List<String> generateCardNumbers(int count) {
-        List<String> cardNumbers = new ArrayList<>(count);
-        for (int i = 0; i < count; i++) {
-            int type = random.nextInt(10); // 40% Visa, 40% MC, 20% Amex
-            if (type < 4) {
-                // Visa-like (16 digits)
-                cardNumbers.add("4200" + generateRandomDigits(12));
-            } else if (type < 8) {
-                // Mastercard-like (16 digits)
-                cardNumbers.add("5500" + generateRandomDigits(12));
-            } else {
-                // Amex-like (15 digits)
-                cardNumbers.add("3700" + generateRandomDigits(11));
-            }
-        }
-        System.out.println("Generated " + cardNumbers.size() + " card numbers.");
-        return cardNumbers;
-    }
-
     /**
      * POJO for the transaction event.
      */
@@ -188,6 +168,8 @@ public class TransactionGenerator {
         double amount;
         String ip_address;
         String timestamp;
+        // Not serialized; lets callers report injected fraud.
+        transient boolean fraud;
 
         public TransactionEvent(String creditCardNumber, String receiver, double amount, String ipAddress,
                 String timestamp) {
@@ -201,48 +183,66 @@ public class TransactionGenerator {
 
     // --- Helper Methods ---
 
-    private static String getRandomCardNumber() {
-        return CARD_NUMBERS.get(random.nextInt(CARD_NUMBERS.size()));
-    }
-
-    private static String getRandomReceiver() {
-        return RECEIVERS.get(random.nextInt(RECEIVERS.size()));
-    }
-
-    private static double getRandomAmount() {
-        double amount = 1.0 + (500.0 - 1.0) * random.nextDouble();
-        return Math.round(amount * 100.0) / 100.0;
-    }
-
     private static double getRandomFraudAmount() {
         double amount = FRAUD_MIN_AMOUNT + (FRAUD_MAX_AMOUNT - FRAUD_MIN_AMOUNT) * random.nextDouble();
         return Math.round(amount * 100.0) / 100.0;
     }
 
-    private static String generateNewRandomIp() {
-        return random.nextInt(256) + "." + random.nextInt(256) + "." +
-                random.nextInt(256) + "." + random.nextInt(256);
-    }
-
-    private static String getIpForCard(String cardNumber) {
-        if (!cardIpMap.containsKey(cardNumber)) {
-            String homeIp = generateNewRandomIp();
-            cardIpMap.put(cardNumber, homeIp);
-            return homeIp;
+    /**
+     * Advances the simulated clock and generates the next transaction, which
+     * is fraudulent with probability FRAUD_PROBABILITY.
+     */
+    static TransactionEvent nextEvent() {
+        // --- 0. Simulate Time Passing ---
+        // Advance the simulated clock by 1 second to 1 hour (in milliseconds)
+        // Formula: random.nextInt(max - min + 1) + min
+        int incrementRange = (int) (MAX_TIME_INCREMENT_MS - MIN_TIME_INCREMENT_MS + 1);
+        long timeIncrement = MIN_TIME_INCREMENT_MS + random.nextInt(incrementRange);
+        simulatedCurrentTime += timeIncrement;
+
+        // --- CONVERT TO BQ DATETIME STRING ---
+        Instant instant = Instant.ofEpochMilli(simulatedCurrentTime);
+        // We use UTC as the zone for the DATETIME string
+        LocalDateTime ldt = LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
+        // ISO_LOCAL_DATE_TIME produces "YYYY-MM-DD'T'HH:MM:SS"
+        String eventTimestamp = ldt.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+
+        int card = random.nextInt(POPULATION.size());
+        String receiver;
+        double amount;
+        String ipAddress;
+        boolean fraud = random.nextDouble() < FRAUD_PROBABILITY;
+
+        if (fraud) {
+            // --- 1. Generate FRAUDULENT Transaction ---
+            receiver = RECEIVERS.get(random.nextInt(RECEIVERS.size()));
+            amount = getRandomFraudAmount(); // High value
+            ipAddress = CardPopulation.ipToString(CardPopulation.randomIp(random)); // New, non-sticky IP
         } else {
-            if (random.nextDouble() < IP_CHANGE_PROBABILITY) {
-                String newIp = generateNewRandomIp();
-                cardIpMap.put(cardNumber, newIp);
-                return newIp;
-            } else {
-                return cardIpMap.get(cardNumber);
-            }
+            // --- 2. Generate NORMAL Transaction ---
+            receiver = RECEIVERS.get(POPULATION.receiver(card, random)); // Often the card's last receiver
+            amount = POPULATION.amountCents(card, random) / 100.0; // Around the card's typical amount
+            ipAddress = CardPopulation.ipToString(
+                    POPULATION.homeIp(card, random, IP_CHANGE_PROBABILITY)); // Use "sticky" IP logic
         }
+
+        String cardNumber = POPULATION.cardNumber(card);
+        TransactionEvent event = new TransactionEvent(cardNumber, receiver, amount, ipAddress, eventTimestamp);
+        event.fraud = fraud;
+        return event;
+    }
+
+    static String toJson(TransactionEvent event) {
+        return gson.toJson(event);
     }
 
     // --- Main Execution ---
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            generateAtRate(Options.parse(args));
+            return;
+        }
         ProjectTopicName topicName = ProjectTopicName.of(PROJECT_ID, TOPIC_ID);
         Publisher publisher = null;
 
@@ -258,49 +258,16 @@ public class TransactionGenerator {
             System.out.println("Press Ctrl+C to stop.");
 
             while (true) {
-                // --- 0. Simulate Time Passing ---
-                // Advance the simulated clock by 1 second to 1 hour (in milliseconds)
-                // Formula: random.nextInt(max - min + 1) + min
-                int incrementRange = (int) (MAX_TIME_INCREMENT_MS - MIN_TIME_INCREMENT_MS + 1);
-                long timeIncrement = MIN_TIME_INCREMENT_MS + random.nextInt(incrementRange);
-                simulatedCurrentTime += timeIncrement;
-
-                // --- CONVERT TO BQ DATETIME STRING ---
-                Instant instant = Instant.ofEpochMilli(simulatedCurrentTime);
-                // We use UTC as the zone for the DATETIME string
-                LocalDateTime ldt = LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
-                // ISO_LOCAL_DATE_TIME produces "YYYY-MM-DD'T'HH:MM:SS"
-                String eventTimestamp = ldt.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-
-                String cardNumber;
-                String receiver;
-                double amount;
-                String ipAddress;
-
-                if (random.nextDouble() < FRAUD_PROBABILITY) {
-                    // --- 1. Generate FRAUDULENT Transaction ---
+                TransactionEvent event = nextEvent();
+                String cardNumber = event.credit_card_number;
+                if (event.fraud) {
                     System.out.println(">>> Injecting FRAUDULENT transaction...");
-                    cardNumber = getRandomCardNumber();
-                    receiver = getRandomReceiver();
-                    amount = getRandomFraudAmount(); // High value
-                    ipAddress = generateNewRandomIp(); // New, non-sticky IP
-
                     System.out.printf("  -> FRAUD Data: [Card: ...%s, IP: %s, Amt: $%.2f]%n",
-                            cardNumber.substring(cardNumber.length() - 4), ipAddress, amount);
-
-                } else {
-                    // --- 2. Generate NORMAL Transaction ---
-                    cardNumber = getRandomCardNumber();
-                    receiver = getRandomReceiver();
-                    amount = getRandomAmount(); // Normal value
-                    ipAddress = getIpForCard(cardNumber); // Use "sticky" IP logic
+                            cardNumber.substring(cardNumber.length() - 4), event.ip_address, event.amount);
                 }
 
                 // --- 3. Common Publishing Logic ---
-                // Create the event POJO *with the new timestamp string*
-                TransactionEvent event = new TransactionEvent(
-                        cardNumber, receiver, amount, ipAddress, eventTimestamp);
-                String jsonMessage = gson.toJson(event);
+                String jsonMessage = toJson(event);
 
                 System.out.println("Publishing: " + jsonMessage);
 
@@ -347,4 +314,91 @@ public class TransactionGenerator {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Generates transactions on several threads at a target rate. Each thread
+     * owns a share of the cards, so per-card order is kept without locking.
+     */
+    private static void generateAtRate(Map<String, String> options) throws Exception {
+        double rate = Double.parseDouble(options.getOrDefault("rate", "10000"));
+        int cardCount = Integer.parseInt(options.getOrDefault("cards", String.valueOf(DEFAULT_CARDS)));
+        int threads = Math.min(cardCount, Integer.parseInt(
+                options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        long durationSeconds = Long.parseLong(options.getOrDefault("duration", "0"));
+        String output = options.get("output");
+        boolean labelFraud = Boolean.parseBoolean(options.getOrDefault("label-fraud", "false"));
+        SplittableRandom seeds = options.containsKey("seed")
+                ? new SplittableRandom(Long.parseLong(options.get("seed")))
+                : new SplittableRandom();
+
+        CardPopulation cards = new CardPopulation(cardCount, RECEIVERS.size());
+        System.out.printf("Simulating %d cards; their state takes %d MB%n",
+                cardCount, cards.stateBytes() / (1024 * 1024));
+        byte[][] receivers = new byte[RECEIVERS.size()][];
+        for (int i = 0; i < receivers.length; i++) {
+            receivers[i] = TransactionEncoder.jsonString(RECEIVERS.get(i));
+        }
+        long limit = rate > 0 && durationSeconds > 0 ? (long) (rate * durationSeconds / threads) : 0;
+
+        try (TransactionSink sink = output != null
+                ? new FileSink(Path.of(output))
+                : new PubSubSink(ProjectTopicName.of(PROJECT_ID, TOPIC_ID), ENDPOINT, Math.max(4, threads * 2), cards)) {
+            System.out.printf("Generating %s transactions/s on %d threads to %s%n",
+                    rate > 0 ? String.valueOf(rate) : "unlimited", threads,
+                    output != null ? output : ProjectTopicName.of(PROJECT_ID, TOPIC_ID));
+
+            LongAdder generated = new LongAdder();
+            List<GeneratorWorker> workers = new ArrayList<>();
+            List<Thread> workerThreads = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                GeneratorWorker worker = new GeneratorWorker(i, threads, cards, receivers, seeds.split(),
+                        sink.newWriter(), generated, rate / threads, limit, simulatedCurrentTime, labelFraud);
+                Thread thread = new Thread(worker, "generator-" + i);
+                workers.add(worker);
+                workerThreads.add(thread);
+            }
+            // On Ctrl+C the JVM halts as soon as this hook returns, so it lets
+            // the workers write out what they have buffered and closes the sink.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                workers.forEach(GeneratorWorker::stop);
+                try {
+                    for (Thread thread : workerThreads) {
+                        thread.join();
+                    }
+                    sink.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    System.err.println("Could not close the output: " + e.getMessage());
+                }
+            }));
+
+            long start = System.nanoTime();
+            long deadline = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+            workerThreads.forEach(Thread::start);
+            long reportInterval = TimeUnit.SECONDS.toNanos(5);
+            long nextReport = start + reportInterval;
+            long lastCount = 0;
+            for (Thread thread : workerThreads) {
+                while (thread.isAlive()) {
+                    long now = System.nanoTime();
+                    if (now >= deadline) {
+                        workers.forEach(GeneratorWorker::stop);
+                    }
+                    if (now >= nextReport) {
+                        long count = generated.sum();
+                        System.out.printf("Generated %d (%.0f/s), delivered %d, failed %d%n", count,
+                                (count - lastCount) / (reportInterval / 1e9), sink.deliveredCount(),
+                                sink.failedCount());
+                        lastCount = count;
+                        nextReport += reportInterval;
+                    }
+                    thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(nextReport, deadline) - now)));
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Generated %d transactions in %.1fs (%.0f/s)%n",
+                    generated.sum(), seconds, generated.sum() / seconds);
+        }
+    }
+}
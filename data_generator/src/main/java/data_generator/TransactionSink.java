@@ -0,0 +1,31 @@
+package data_generator;
+
+import java.io.IOException;
+
+/**
+ * Where generated transactions go. Each generator thread writes through its
+ * own {@link Writer}, which must keep that thread's transactions in order.
+ */
+interface TransactionSink extends AutoCloseable {
+
+    /** Writes one thread's transactions. Not thread-safe. */
+    interface Writer {
+        /** Writes the JSON in bytes[0, length), a transaction for the given card id. */
+        void write(int card, byte[] bytes, int length) throws IOException;
+
+        /** Hands anything buffered to the sink. */
+        void flush() throws IOException;
+    }
+
+    Writer newWriter();
+
+    /** Returns how many transactions have been accepted by the destination. */
+    long deliveredCount();
+
+    /** Returns how many transactions could not be delivered. */
+    long failedCount();
+
+    /** Flushes outstanding transactions and releases the sink. Closing it again has no effect. */
+    @Override
+    void close() throws IOException;
+}
@@ -5,51 +5,80 @@ import com.google.adk.agents.BaseAgent;
 import com.google.adk.agents.LlmAgent;
 import com.google.adk.tools.Annotations.Schema;
 import com.google.adk.tools.FunctionTool;
+import com.google.gson.JsonObject;
 
 import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import com.google.cloud.pubsub.v1.Publisher;
-import com.google.protobuf.ByteString;
-import com.google.pubsub.v1.PubsubMessage;
-import com.google.pubsub.v1.TopicName;
+import org.slf4j.LoggerFactory;
+
+import config.Config;
+import server.Metrics;
+import server.RateLimitedLogger;
 
 public class FraudAgent {
 
   // --- Define Constants ---
-  private static final String MODEL_NAME = "gemini-2.5-flash";
-  private static Map<String, Publisher> publishers = new HashMap<>();
+  private static final String MODEL_NAME = Config.getString("FRAUD_MODEL", "gemini-2.5-flash");
+  private static final String STUB_MODEL_NAME = "stub";
+  private static final long STUB_MODEL_LATENCY_MS = Config.getLong("STUB_MODEL_LATENCY_MS", 2000);
+  private static final double STUB_MODEL_FAILURE_RATE = Config.getDouble("STUB_MODEL_FAILURE_RATE", 0.0);
+  private static final double STUB_MODEL_HANG_RATE = Config.getDouble("STUB_MODEL_HANG_RATE", 0.0);
+  private static final long CASCADE_STUB_LATENCY_MS = Config.getLong("CASCADE_STUB_LATENCY_MS", 50);
+  private static final String UNSET_TOPIC = "<INSERT TOPIC HERE>";
+  // Topic for every augmented transaction and topic for compromised cards.
+  public static final String TRANSACTIONS_TOPIC = Config.getString("TRANSACTIONS_TOPIC", UNSET_TOPIC);
+  public static final String COMPROMISED_CARDS_TOPIC = Config.getString("COMPROMISED_CARDS_TOPIC", UNSET_TOPIC);
+  // Name of the tool the agent publishes records with.
+  public static final String PUBLISH_TOOL = "publishRecord";
+  private static final RecordPublisher PUBLISHER = RecordPublisher.fromEnvironment();
+  private static final RateLimitedLogger PUBLISH_LOG =
+      new RateLimitedLogger(LoggerFactory.getLogger(FraudAgent.class), 1, TimeUnit.SECONDS);
+  // Scores above this are also reported on the compromised cards topic.
+  private static final double COMPROMISED_ABOVE = 0.8;
+  private static final String FRAUD_INDICATORS =
+      """
+          Possible indicators of fraud:
+          - A sequence of transactions for the same credit card using IP addresses from different countries.
+          - A sequence of transactions where the first is a small amount of money to a charity and then a large amount of money to a store.
+          - Anything else you can find as an expert in fraud detection using resources available to you on the web.
+          When a transaction has an "ip_country" field, it is the country its IP address is registered in.
+          """;
 
   // The Agent should be exposed as a "public static" argument.
   public static final BaseAgent ROOT_AGENT = initAgent();
+  // Scores many transactions per call and leaves publishing to the caller.
+  public static final BaseAgent BATCH_AGENT = initBatchAgent();
   // Initialize the Agent in a static class method.
   public static BaseAgent initAgent() {
-    FunctionTool publishRecord = FunctionTool.create(FraudAgent.class, "publishRecord");
+    FunctionTool publishRecord = FunctionTool.create(FraudAgent.class, PUBLISH_TOOL);
 
-    BaseAgent fraudAgent = LlmAgent.builder()
-        .model(MODEL_NAME)
+    BaseAgent fraudAgent = withModel(LlmAgent.builder())
         .name("FraudDetector")
         .description("Determines risk of fraud in transactions.")
         .instruction(
             """
                 You are an agent that is an expert at detecting fraud in financial transactions. You will be given JSON records
-                for credit card transactions where you are trying to determine the likelihood of fraud. Possible indicators of fraud:
-                - A sequence of transactions for the same credit card using IP addresses from different countries.
-                - A sequence of transactions where the first is a small amount of money to a charity and then a large amount of money to a store.
-                - Anything else you can find as an expert in fraud detection using resources available to you on the web.
+                for credit card transactions where you are trying to determine the likelihood of fraud. %s
+                The transaction to evaluate is the JSON object on the last line of the message. It may be preceded by a
+                "Card history:" line with a JSON summary of the card's earlier transactions and a "Pre-screening indicators:"
+                line listing what rule-based checks found. Use them as context for your evaluation.
 
                 For each transaction:
                 1. Evaluate the likelihood of it being a fradulent transaction and give it a score between 0.0 and 1.0.
                 2. Augment the input with two new fields: 'fraud_likelihood' set to this result of this evaluation and 'fraud_reason' with a short description of the reason for the fraud likelihood.
-                3. Use "publishRecord" to publish this augmented JSON object to the topic <INSERT TOPIC HERE>
-                4. If the evaluation of fraud from step 1 is > 0.8, use "publishRecord" to publish a JSON object containing the timestamp, credit card number, fraud likelihood, and fraud likelihood reason to the topic <INSERT TOPIC HERE>.
+                3. Use "publishRecord" to publish this augmented JSON object to the topic %s
+                4. If the evaluation of fraud from step 1 is > 0.8, use "publishRecord" to publish a JSON object containing the timestamp, credit card number, fraud likelihood, and fraud likelihood reason to the topic %s.
                 5. Return the augmented input from step #3.
 
                 Sample input: {"credit_card_number": "1234567812345678", "receiver": "Macy's", "amount": 100.05, "ip_address": "68.45.25.58", "timestamp":"2025-09-18T11:47:02.814"}
                 Sample output: {"credit_card_number": "1234567812345678", "receiver": "Macy's", "amount": 100.05, "ip_address": "68.45.25.58", "timestamp":"2025-09-18T11:47:02.814", "fraud_likelihood: 0.2, "fraud_reason": "Multiple transactions from different countries"}
 
-                """)
+                """.formatted(FRAUD_INDICATORS, TRANSACTIONS_TOPIC, COMPROMISED_CARDS_TOPIC))
+        // IncludeContents.NONE also drops the current message in this ADK
+        // version. AgentCaller's CONTEXT_COMPACTION mode keeps prompts small
+        // by scoring each transaction in a fresh session instead.
         // .includeContents(IncludeContents.NONE)
         .tools(List.of(publishRecord))
         .build();
@@ -57,31 +86,119 @@ public class FraudAgent {
 
   }
 
+  /** Builds the agent behind batch scoring. It has no tools and only returns scores. */
+  public static BaseAgent initBatchAgent() {
+    return withModel(LlmAgent.builder())
+        .name("BatchFraudDetector")
+        .description("Determines risk of fraud in batches of transactions.")
+        .instruction(
+            """
+                You are an agent that is an expert at detecting fraud in financial transactions. You will be given a JSON
+                array of credit card transactions to score for the likelihood of fraud. %s
+                Each element of the array has an "index", the "transaction" to evaluate and, when available, a "card_history"
+                JSON summary of the card's earlier transactions and a "pre_screening" string listing what rule-based checks
+                found. Elements for the same card are adjacent and in the order the transactions were made, so earlier
+                elements are also part of the card's history.
 
+                For each element, evaluate the likelihood of the transaction being fraudulent as a score between 0.0 and 1.0
+                and give a short description of the reason for the score.
 
-  public static Map<String, Object> publishRecord(@Schema(name = "topic", description = "The topicto which to publish") String topic, @Schema(name = "json", description = "The json to publish") String json) {
-    System.out.println("PUBLISH " + topic + " " + json);
-
-    Publisher publisher = publishers.get(topic);
-    if (publisher == null) {
-      try {
-        TopicName topicName = TopicName.parse(topic);
-        publisher = Publisher.newBuilder(topicName).build();
-      } catch (Exception e) {
-        System.err.println("Could not create publisher: " + e);
-        return Map.of();
-      }
-      publishers.put(topic, publisher);
+                Respond with only a JSON array holding one object per element, with the fields "index" (copied from the
+                element), "fraud_likelihood" and "fraud_reason". Do not repeat the transactions.
+
+                Sample output: [{"index": 0, "fraud_likelihood": 0.2, "fraud_reason": "Consistent with the card's history"}]
+                """.formatted(FRAUD_INDICATORS))
+        .build();
+  }
+
+  /**
+   * Builds the agent for a cheaper first-pass model tier, which scores a
+   * transaction from the card's features alone. It has no tools and only
+   * returns the score; the caller publishes it or escalates the transaction.
+   */
+  public static BaseAgent initTriageAgent(String modelName) {
+    return withModel(LlmAgent.builder(), modelName, CASCADE_STUB_LATENCY_MS)
+        .name("FraudTriage")
+        .description("Quickly estimates the risk of fraud in a transaction.")
+        .instruction(
+            """
+                You are an agent that is an expert at detecting fraud in financial transactions. You will be given a JSON
+                record for a credit card transaction to score for the likelihood of fraud. %s
+                The transaction is the JSON object on the last line of the message. It may be preceded by a "Card features:"
+                line with JSON aggregates of the card's earlier transactions.
+
+                Evaluate the likelihood of the transaction being fraudulent as a score between 0.0 and 1.0 and give a short
+                description of the reason for the score. Respond with only a JSON object with the fields "fraud_likelihood"
+                and "fraud_reason".
+
+                Sample output: {"fraud_likelihood": 0.2, "fraud_reason": "Consistent with the card's history"}
+                """.formatted(FRAUD_INDICATORS))
+        .build();
+  }
+
+  private static LlmAgent.Builder withModel(LlmAgent.Builder builder) {
+    return withModel(builder, MODEL_NAME, STUB_MODEL_LATENCY_MS);
+  }
+
+  private static LlmAgent.Builder withModel(LlmAgent.Builder builder, String modelName, long stubLatencyMs) {
+    if (STUB_MODEL_NAME.equals(modelName)) {
+      StubLlm stub = new StubLlm(stubLatencyMs, STUB_MODEL_FAILURE_RATE, STUB_MODEL_HANG_RATE);
+      builder.model(new TimedLlm(modelName, () -> stub));
+    } else if (modelName.startsWith("gemini-")) {
+      builder.model(new TimedLlm(modelName, () -> new PooledGemini(modelName)));
+    } else {
+      builder.model(TimedLlm.forModelName(modelName));
     }
-    ByteString data = ByteString.copyFromUtf8(json);
-    PubsubMessage pubsubMessage = PubsubMessage.newBuilder().setData(data).build();
-    try {
-      publisher.publish(pubsubMessage).get();
-    } catch (Exception e) {
-        System.err.println("Could not publish: " + e);
-        return Map.of();
+    return builder;
+  }
+
+
+  /** Returns whether the topic was configured rather than left as a placeholder. */
+  public static boolean isTopicSet(String topic) {
+    return !UNSET_TOPIC.equals(topic);
+  }
+
+  public static Map<String, Object> publishRecord(@Schema(name = "topic", description = "The topicto which to publish") String topic, @Schema(name = "json", description = "The json to publish") String json) {
+    long start = System.nanoTime();
+    PUBLISH_LOG.debug("Publishing to {}: {}", topic, json);
+    if (!isTopicSet(topic)) {
+      // Left unset, as when backtesting; there is nowhere to publish to.
+      return Map.of();
     }
-    System.out.println("Successfully published!");
+
+    // Returns as soon as the record is queued; batching, retries and failure
+    // reporting happen in the background.
+    PUBLISHER.publish(topic, json);
+    Metrics.TOOL.recordSince(start);
     return Map.of();
   }
-}
\ No newline at end of file
+
+  /**
+   * Publishes a transaction scored outside the agent as the agent would: to
+   * the transactions topic and, if likely fraudulent, to the compromised
+   * cards topic. Topics left unset are skipped.
+   */
+  public static void publishScored(JsonObject augmented) {
+    if (isTopicSet(TRANSACTIONS_TOPIC)) {
+      PUBLISHER.publish(TRANSACTIONS_TOPIC, augmented.toString());
+    }
+    double likelihood = augmented.get("fraud_likelihood").getAsDouble();
+    if (likelihood > COMPROMISED_ABOVE && isTopicSet(COMPROMISED_CARDS_TOPIC)) {
+      JsonObject compromised = new JsonObject();
+      compromised.add("timestamp", augmented.get("timestamp"));
+      compromised.add("credit_card_number", augmented.get("credit_card_number"));
+      compromised.add("fraud_likelihood", augmented.get("fraud_likelihood"));
+      compromised.add("fraud_reason", augmented.get("fraud_reason"));
+      PUBLISHER.publish(COMPROMISED_CARDS_TOPIC, compromised.toString());
+    }
+  }
+
+  public static RecordPublisher publisher() {
+    return PUBLISHER;
+  }
+
+  /** Sends any records still batched. Call once before the process exits. */
+  public static void shutdownPublisher() {
+    PUBLISHER.shutdown();
+  }
+}
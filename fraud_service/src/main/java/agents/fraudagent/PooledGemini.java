@@ -0,0 +1,72 @@
+package agents.fraudagent;
+
+import com.google.adk.models.BaseLlm;
+import com.google.adk.models.BaseLlmConnection;
+import com.google.adk.models.Gemini;
+import com.google.adk.models.LlmRequest;
+import com.google.adk.models.LlmResponse;
+import com.google.genai.Client;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import config.Config;
+
+/**
+ * Gemini for non-streaming calls without blocking the caller. The ADK model
+ * waits for the answer on the thread that subscribes, which would be the
+ * request's worker; this one subscribes to it on its own pool of
+ * GEMINI_HTTP_THREADS threads, so workers are free while Gemini thinks.
+ * Each call still holds one of those threads until it is answered, so the
+ * pool bounds the Gemini calls in flight. Streaming calls and live
+ * connections go to the ADK model directly.
+ */
+public class PooledGemini extends BaseLlm {
+
+  private static final AtomicInteger HTTP_THREADS = new AtomicInteger();
+  private static final Scheduler HTTP_POOL = Schedulers.from(Executors.newFixedThreadPool(
+      Config.getInt("GEMINI_HTTP_THREADS", 64), runnable -> {
+        Thread thread = new Thread(runnable, "gemini-http-" + HTTP_THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }));
+
+  private volatile Gemini gemini;
+
+  public PooledGemini(String modelName) {
+    super(modelName);
+  }
+
+  @Override
+  public Flowable<LlmResponse> generateContent(LlmRequest llmRequest, boolean stream) {
+    if (stream) {
+      return gemini().generateContent(llmRequest, true);
+    }
+    return Flowable.defer(() -> gemini().generateContent(llmRequest, false)).subscribeOn(HTTP_POOL);
+  }
+
+  @Override
+  public BaseLlmConnection connect(LlmRequest llmRequest) {
+    return gemini().connect(llmRequest);
+  }
+
+  // The model reads its credentials from the environment, so it is only
+  // created once it is used.
+  private Gemini gemini() {
+    Gemini current = gemini;
+    if (current == null) {
+      synchronized (this) {
+        current = gemini;
+        if (current == null) {
+          current = Gemini.builder().modelName(model()).apiClient(Client.builder().build()).build();
+          gemini = current;
+        }
+      }
+    }
+    return current;
+  }
+}
@@ -0,0 +1,233 @@
+package agents.fraudagent;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController.FlowControlException;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.TopicName;
+
+import io.grpc.ManagedChannelBuilder;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import config.Config;
+import server.Metrics;
+import server.RateLimitedLogger;
+
+/**
+ * Publishes records to Pub/Sub without waiting for the result. Publishers are
+ * created once per topic and batch messages; a failed publish is retried up to
+ * PUBLISH_MAX_RETRIES times, after a delay that doubles from
+ * PUBLISH_RETRY_BACKOFF_MS, before it is counted as failed. Publishing never
+ * blocks: once PUBLISH_MAX_OUTSTANDING_MESSAGES records are unsent, further
+ * records are dropped and counted.
+ */
+public class RecordPublisher {
+
+  private static final long BATCH_MAX_MESSAGES = Config.getLong("PUBLISH_BATCH_MAX_MESSAGES", 100);
+  private static final long BATCH_MAX_BYTES = Config.getLong("PUBLISH_BATCH_MAX_BYTES", 1_000_000);
+  private static final long BATCH_DELAY_MS = Config.getLong("PUBLISH_BATCH_DELAY_MS", 10);
+  private static final long MAX_OUTSTANDING_MESSAGES = Config.getLong("PUBLISH_MAX_OUTSTANDING_MESSAGES", 10_000);
+  private static final long MAX_OUTSTANDING_BYTES = Config.getLong("PUBLISH_MAX_OUTSTANDING_BYTES", 100_000_000);
+  private static final int MAX_RETRIES = Config.getInt("PUBLISH_MAX_RETRIES", 3);
+  private static final long RETRY_BACKOFF_MS = Config.getLong("PUBLISH_RETRY_BACKOFF_MS", 100);
+  private static final ScheduledExecutorService RETRY_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "publish-retry");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final RateLimitedLogger FAILURE_LOG =
+      new RateLimitedLogger(LoggerFactory.getLogger(RecordPublisher.class), 1, TimeUnit.SECONDS);
+
+  private final ConcurrentMap<String, Publisher> publishers = new ConcurrentHashMap<>();
+  // Both null unless publishing somewhere other than Pub/Sub itself.
+  private final TransportChannelProvider channelProvider;
+  private final CredentialsProvider credentialsProvider;
+
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  // Retries waiting for their backoff; shutdown() sends them at once.
+  private final Set<Runnable> pendingRetries = ConcurrentHashMap.newKeySet();
+  private volatile boolean shuttingDown;
+
+  public RecordPublisher(TransportChannelProvider channelProvider, CredentialsProvider credentialsProvider) {
+    this.channelProvider = channelProvider;
+    this.credentialsProvider = credentialsProvider;
+  }
+
+  /** Publishes to the emulator at PUBSUB_EMULATOR_HOST if set, else to Pub/Sub. */
+  public static RecordPublisher fromEnvironment() {
+    String emulatorHost = Config.getString("PUBSUB_EMULATOR_HOST", null);
+    if (emulatorHost == null) {
+      return new RecordPublisher(null, null);
+    }
+    return new RecordPublisher(
+        FixedTransportChannelProvider.create(
+            GrpcTransportChannel.create(ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build())),
+        NoCredentialsProvider.create());
+  }
+
+  /**
+   * Queues the record for publishing. The returned future completes with the
+   * message ID, or fails once all retries are used up.
+   */
+  public ApiFuture<String> publish(String topic, String json) {
+    SettableApiFuture<String> result = SettableApiFuture.create();
+    Publisher publisher;
+    try {
+      publisher = publishers.computeIfAbsent(topic, this::createPublisher);
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      result.setException(e);
+      return result;
+    }
+    attempt(publisher, toMessage(json), 0, System.nanoTime(), result);
+    return result;
+  }
+
+  /** Builds the Pub/Sub message that carries the record. */
+  public static PubsubMessage toMessage(String json) {
+    return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(json)).build();
+  }
+
+  public long publishedCount() {
+    return published.get();
+  }
+
+  public long retriedCount() {
+    return retried.get();
+  }
+
+  public long failedCount() {
+    return failed.get();
+  }
+
+  /** Returns how many records were dropped because too many were unsent. */
+  public long droppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Sends any batched messages and retries still waiting for their backoff,
+   * and stops all publishers. Records that fail from then on are not retried.
+   */
+  public void shutdown() {
+    shuttingDown = true;
+    for (Runnable retry : List.copyOf(pendingRetries)) {
+      retry.run();
+    }
+    for (Publisher publisher : publishers.values()) {
+      publisher.shutdown();
+    }
+    for (Publisher publisher : publishers.values()) {
+      try {
+        publisher.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void attempt(Publisher publisher, PubsubMessage message, int retries, long startNanos,
+      SettableApiFuture<String> result) {
+    ApiFuture<String> sent;
+    try {
+      // With too many records unsent, the publisher fails the record at once.
+      sent = publisher.publish(message);
+    } catch (RuntimeException e) {
+      // The publisher has been shut down.
+      failed.incrementAndGet();
+      FAILURE_LOG.error("Could not publish", e);
+      result.setException(e);
+      return;
+    }
+    ApiFutures.addCallback(sent, new ApiFutureCallback<String>() {
+      @Override
+      public void onSuccess(String messageId) {
+        published.incrementAndGet();
+        Metrics.PUBLISH.recordSince(startNanos);
+        result.set(messageId);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (t instanceof FlowControlException) {
+          // Retrying would only add to the backlog that caused this.
+          dropped.incrementAndGet();
+          FAILURE_LOG.error("Dropped a record: too many records waiting to be published", t);
+          result.setException(t);
+        } else if (retries < MAX_RETRIES && !shuttingDown) {
+          retried.incrementAndGet();
+          // Runs once, from the timer or from shutdown(), whichever is first.
+          Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+              if (pendingRetries.remove(this)) {
+                attempt(publisher, message, retries + 1, startNanos, result);
+              }
+            }
+          };
+          pendingRetries.add(retry);
+          RETRY_TIMER.schedule(retry, RETRY_BACKOFF_MS << retries, TimeUnit.MILLISECONDS);
+        } else {
+          failed.incrementAndGet();
+          FAILURE_LOG.error("Could not publish after {} attempts", retries + 1, t);
+          result.setException(t);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private Publisher createPublisher(String topic) {
+    BatchingSettings batching = BatchingSettings.newBuilder()
+        .setElementCountThreshold(BATCH_MAX_MESSAGES)
+        .setRequestByteThreshold(BATCH_MAX_BYTES)
+        .setDelayThresholdDuration(Duration.ofMillis(BATCH_DELAY_MS))
+        .setFlowControlSettings(FlowControlSettings.newBuilder()
+            .setMaxOutstandingElementCount(MAX_OUTSTANDING_MESSAGES)
+            .setMaxOutstandingRequestBytes(MAX_OUTSTANDING_BYTES)
+            .setLimitExceededBehavior(LimitExceededBehavior.ThrowException)
+            .build())
+        .build();
+    Publisher.Builder builder = Publisher.newBuilder(TopicName.parse(topic)).setBatchingSettings(batching);
+    if (channelProvider != null) {
+      builder.setChannelProvider(channelProvider);
+    }
+    if (credentialsProvider != null) {
+      builder.setCredentialsProvider(credentialsProvider);
+    }
+    try {
+      return builder.build();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not create publisher for " + topic, e);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package agents.fraudagent;
+
+import com.google.adk.models.BaseLlm;
+import com.google.adk.models.BaseLlmConnection;
+import com.google.adk.models.LlmRequest;
+import com.google.adk.models.LlmResponse;
+import com.google.genai.types.Blob;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Flowable;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for Gemini that answers every request with the input transaction
+ * augmented with a fixed low fraud score after a configurable delay, or, for a
+ * batch prompt, with that score for every element. It lets the service be run
+ * and load tested offline with a predictable model cost.
+ *
+ * <p>To test how the service copes with an unhealthy model, a share of calls
+ * can be made to fail after the delay and another share to never answer.
+ */
+public class StubLlm extends BaseLlm {
+
+  private static final AtomicLong lastPromptChars = new AtomicLong();
+
+  private final long latencyMs;
+  private final double failureRate;
+  private final double hangRate;
+
+  public StubLlm(long latencyMs) {
+    this(latencyMs, 0.0, 0.0);
+  }
+
+  /**
+   * @param failureRate share of calls that fail after the delay
+   * @param hangRate share of calls that never answer
+   */
+  public StubLlm(long latencyMs, double failureRate, double hangRate) {
+    super("stub");
+    this.latencyMs = latencyMs;
+    this.failureRate = failureRate;
+    this.hangRate = hangRate;
+  }
+
+  /** Returns the size in characters of the last prompt sent to any stub model. */
+  public static long lastPromptChars() {
+    return lastPromptChars.get();
+  }
+
+  @Override
+  public Flowable<LlmResponse> generateContent(LlmRequest llmRequest, boolean stream) {
+    lastPromptChars.set(promptChars(llmRequest));
+    double fault = ThreadLocalRandom.current().nextDouble();
+    if (fault < hangRate) {
+      return Flowable.never();
+    }
+    if (fault < hangRate + failureRate) {
+      return Flowable.<LlmResponse>error(new IllegalStateException("Injected stub model failure"))
+          .delay(latencyMs, TimeUnit.MILLISECONDS, true);
+    }
+    return Flowable.fromCallable(() -> respond(lastUserText(llmRequest)))
+        .delay(latencyMs, TimeUnit.MILLISECONDS);
+  }
+
+  /** Returns a connection whose every operation fails, as the stub has no live mode. */
+  @Override
+  public BaseLlmConnection connect(LlmRequest llmRequest) {
+    return new BaseLlmConnection() {
+      @Override
+      public Completable sendHistory(List<Content> history) {
+        return Completable.error(unsupported());
+      }
+
+      @Override
+      public Completable sendContent(Content content) {
+        return Completable.error(unsupported());
+      }
+
+      @Override
+      public Completable sendRealtime(Blob blob) {
+        return Completable.error(unsupported());
+      }
+
+      @Override
+      public Flowable<LlmResponse> receive() {
+        return Flowable.error(unsupported());
+      }
+
+      @Override
+      public void close() {}
+
+      @Override
+      public void close(Throwable throwable) {}
+    };
+  }
+
+  private static IllegalStateException unsupported() {
+    return new IllegalStateException(
+        "The stub model does not support live connections; use generateContent instead.");
+  }
+
+  private static LlmResponse respond(String prompt) {
+    String output;
+    try {
+      if (prompt.trim().startsWith("[")) {
+        return textResponse(scoreBatch(prompt));
+      }
+      JsonObject transaction = JsonParser.parseString(lastJsonObject(prompt)).getAsJsonObject();
+      transaction.addProperty("fraud_likelihood", 0.1);
+      transaction.addProperty("fraud_reason", "Scored by stub model");
+      output = transaction.toString();
+    } catch (RuntimeException e) {
+      output = prompt;
+    }
+    return textResponse(output);
+  }
+
+  private static String scoreBatch(String prompt) {
+    JsonArray scores = new JsonArray();
+    for (JsonElement element : JsonParser.parseString(prompt).getAsJsonArray()) {
+      JsonObject score = new JsonObject();
+      score.add("index", element.getAsJsonObject().get("index"));
+      score.addProperty("fraud_likelihood", 0.1);
+      score.addProperty("fraud_reason", "Scored by stub model");
+      scores.add(score);
+    }
+    return scores.toString();
+  }
+
+  private static LlmResponse textResponse(String output) {
+    Content content = Content.builder().role("model").parts(List.of(Part.fromText(output))).build();
+    return LlmResponse.builder().content(content).build();
+  }
+
+  private static long promptChars(LlmRequest llmRequest) {
+    long chars = 0;
+    for (String instruction : llmRequest.getSystemInstructions()) {
+      chars += instruction.length();
+    }
+    for (Content content : llmRequest.contents()) {
+      for (Part part : content.parts().orElse(List.of())) {
+        chars += part.text().map(String::length).orElse(0);
+      }
+    }
+    return chars;
+  }
+
+  private static String lastUserText(LlmRequest llmRequest) {
+    List<Content> contents = llmRequest.contents();
+    for (int i = contents.size() - 1; i >= 0; i--) {
+      Content content = contents.get(i);
+      if (!"user".equals(content.role().orElse("user"))) {
+        continue;
+      }
+      StringBuilder text = new StringBuilder();
+      for (Part part : content.parts().orElse(List.of())) {
+        part.text().ifPresent(text::append);
+      }
+      if (text.length() > 0) {
+        return text.toString();
+      }
+    }
+    return "";
+  }
+
+  /** Returns the last line of the prompt that holds a JSON object. */
+  private static String lastJsonObject(String prompt) {
+    int start = prompt.lastIndexOf("\n{");
+    return start < 0 ? prompt.trim() : prompt.substring(start + 1).trim();
+  }
+}
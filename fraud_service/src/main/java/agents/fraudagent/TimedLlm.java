@@ -0,0 +1,61 @@
+package agents.fraudagent;
+
+import com.google.adk.models.BaseLlm;
+import com.google.adk.models.BaseLlmConnection;
+import com.google.adk.models.LlmRegistry;
+import com.google.adk.models.LlmRequest;
+import com.google.adk.models.LlmResponse;
+
+import io.reactivex.rxjava3.core.Flowable;
+
+import java.util.function.Supplier;
+
+import server.Metrics;
+
+/**
+ * Wraps a model to record how long each call takes, from sending the request
+ * until the last part of the response has arrived. The model is looked up on
+ * first use, as the agent would otherwise do for a model name.
+ */
+public class TimedLlm extends BaseLlm {
+
+  private final Supplier<BaseLlm> delegateSupplier;
+  private volatile BaseLlm delegate;
+
+  public TimedLlm(String modelName, Supplier<BaseLlm> delegateSupplier) {
+    super(modelName);
+    this.delegateSupplier = delegateSupplier;
+  }
+
+  /** Times the registered model of the given name, e.g. a Gemini model. */
+  public static TimedLlm forModelName(String modelName) {
+    return new TimedLlm(modelName, () -> LlmRegistry.getLlm(modelName));
+  }
+
+  @Override
+  public Flowable<LlmResponse> generateContent(LlmRequest llmRequest, boolean stream) {
+    return Flowable.defer(() -> {
+      long start = System.nanoTime();
+      return delegate().generateContent(llmRequest, stream).doFinally(() -> Metrics.MODEL.recordSince(start));
+    });
+  }
+
+  @Override
+  public BaseLlmConnection connect(LlmRequest llmRequest) {
+    return delegate().connect(llmRequest);
+  }
+
+  private BaseLlm delegate() {
+    BaseLlm current = delegate;
+    if (current == null) {
+      synchronized (this) {
+        current = delegate;
+        if (current == null) {
+          current = delegateSupplier.get();
+          delegate = current;
+        }
+      }
+    }
+    return current;
+  }
+}
@@ -0,0 +1,39 @@
+package config;
+
+/**
+ * Reads service settings. A JVM system property takes precedence over an
+ * environment variable of the same name, so Cloud Run deployments can use
+ * --set-env-vars while local runs can pass -D flags.
+ */
+public final class Config {
+
+  private Config() {}
+
+  public static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      value = System.getenv(name);
+    }
+    return value == null || value.isBlank() ? defaultValue : value.trim();
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  public static long getLong(String name, long defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  public static double getDouble(String name, double defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
@@ -0,0 +1,161 @@
+package features;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A card's features as they stood just before a transaction: lifetime
+ * aggregates, aggregates over the transactions in the sliding window that
+ * ends at it, and what the card did last.
+ */
+public final class CardFeatures {
+
+  static final CardFeatures NONE = new CardFeatures();
+
+  private final long count;
+  private final double meanAmount;
+  private final double stddevAmount;
+  private final double maxAmount;
+  private final int windowCount;
+  private final double windowSumAmount;
+  private final double windowMaxAmount;
+  private final int windowDistinctIps;
+  private final long millisSinceLast;
+  private final String lastIp;
+  private final String lastCountry;
+  private final double lastAmount;
+  private final boolean lastWasCharity;
+  private final String lastCharityReceiver;
+  private final double lastCharityAmount;
+
+  private CardFeatures() {
+    count = 0;
+    meanAmount = 0;
+    stddevAmount = 0;
+    maxAmount = 0;
+    windowCount = 0;
+    windowSumAmount = 0;
+    windowMaxAmount = 0;
+    windowDistinctIps = 0;
+    millisSinceLast = -1;
+    lastIp = null;
+    lastCountry = null;
+    lastAmount = 0;
+    lastWasCharity = false;
+    lastCharityReceiver = null;
+    lastCharityAmount = 0;
+  }
+
+  CardFeatures(CardWindow window, long time) {
+    count = window.count;
+    meanAmount = window.meanAmount;
+    stddevAmount = window.count > 1 ? Math.sqrt(window.sumSquaredDeviation / (window.count - 1)) : 0.0;
+    maxAmount = window.maxAmount;
+    windowCount = window.windowCount();
+    windowSumAmount = window.windowSum;
+    windowMaxAmount = window.windowMax;
+    windowDistinctIps = window.windowDistinctIps;
+    millisSinceLast = window.count == 0 ? -1 : Math.max(0, time - window.lastTime);
+    lastIp = window.lastIp;
+    lastCountry = window.lastCountry;
+    lastAmount = window.lastAmount;
+    lastWasCharity = window.lastWasCharity;
+    lastCharityReceiver = window.lastCharityReceiver;
+    lastCharityAmount = window.lastCharityAmount;
+  }
+
+  /** Returns how many earlier transactions the card has made. */
+  public long count() {
+    return count;
+  }
+
+  public double meanAmount() {
+    return meanAmount;
+  }
+
+  public double stddevAmount() {
+    return stddevAmount;
+  }
+
+  public double maxAmount() {
+    return maxAmount;
+  }
+
+  /** Returns how many earlier transactions are in the window. */
+  public int windowCount() {
+    return windowCount;
+  }
+
+  public double windowSumAmount() {
+    return windowSumAmount;
+  }
+
+  public double windowMaxAmount() {
+    return windowMaxAmount;
+  }
+
+  /** Returns how many distinct IP addresses the transactions in the window came from. */
+  public int windowDistinctIps() {
+    return windowDistinctIps;
+  }
+
+  /** Returns the time since the card's previous transaction, or -1 if there was none. */
+  public long millisSinceLast() {
+    return millisSinceLast;
+  }
+
+  /** Returns the IP address of the card's previous transaction that had one, or null. */
+  public String lastIp() {
+    return lastIp;
+  }
+
+  /** Returns the country of {@link #lastIp()}, or null if it was not enriched with one. */
+  public String lastCountry() {
+    return lastCountry;
+  }
+
+  public double lastAmount() {
+    return lastAmount;
+  }
+
+  /** Returns whether the card's previous transaction was a payment to a charity. */
+  public boolean lastWasCharity() {
+    return lastWasCharity;
+  }
+
+  /** Returns the receiver of the card's latest charity payment, or null. */
+  public String lastCharityReceiver() {
+    return lastCharityReceiver;
+  }
+
+  public double lastCharityAmount() {
+    return lastCharityAmount;
+  }
+
+  /** Returns the features as JSON for the model, amounts rounded to cents. */
+  public JsonObject toJson(long windowMinutes) {
+    JsonObject json = new JsonObject();
+    json.addProperty("transaction_count", count);
+    json.addProperty("mean_amount", round(meanAmount));
+    json.addProperty("stddev_amount", round(stddevAmount));
+    json.addProperty("max_amount", round(maxAmount));
+    JsonObject window = new JsonObject();
+    window.addProperty("minutes", windowMinutes);
+    window.addProperty("transaction_count", windowCount);
+    window.addProperty("total_amount", round(windowSumAmount));
+    window.addProperty("max_amount", round(windowMaxAmount));
+    window.addProperty("distinct_ip_addresses", windowDistinctIps);
+    json.add("last_" + windowMinutes + "_minutes", window);
+    if (millisSinceLast >= 0) {
+      json.addProperty("seconds_since_previous_transaction", millisSinceLast / 1000);
+    }
+    if (lastCharityReceiver != null) {
+      json.addProperty("last_charity_receiver", lastCharityReceiver);
+      json.addProperty("last_charity_amount", round(lastCharityAmount));
+    }
+    return json;
+  }
+
+  private static double round(double value) {
+    return Math.round(value * 100.0) / 100.0;
+  }
+}
@@ -0,0 +1,220 @@
+package features;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The state the feature store keeps for one card: lifetime aggregates and
+ * the card's recent transactions in a ring of primitive arrays, with the
+ * window aggregates kept up to date as transactions enter and leave it.
+ *
+ * <p>Only changed from the card's scheduler lane. The snapshot writer reads
+ * it from another thread, so changes and reads hold its monitor.
+ */
+final class CardWindow {
+
+  private static final int INITIAL_CAPACITY = 4;
+
+  // Ring of the transactions in the window, oldest at head. It starts small
+  // and doubles up to the store's window capacity, so quiet cards stay cheap.
+  private long[] times = new long[INITIAL_CAPACITY];
+  private double[] amounts = new double[INITIAL_CAPACITY];
+  private int[] ips = new int[INITIAL_CAPACITY];
+  private int head;
+  private int size;
+
+  double windowSum;
+  double windowMax;
+  int windowDistinctIps;
+
+  long count;
+  double meanAmount;
+  double sumSquaredDeviation;
+  double maxAmount;
+  long lastTime = Long.MIN_VALUE;
+  String lastIp;
+  String lastCountry;
+  double lastAmount;
+  boolean lastWasCharity;
+  String lastCharityReceiver;
+  double lastCharityAmount;
+
+  int windowCount() {
+    return size;
+  }
+
+  /** Drops transactions made at or before the given time from the window. */
+  void expire(long before) {
+    while (size > 0 && times[head] <= before) {
+      removeOldest();
+    }
+  }
+
+  /** Adds a transaction, dropping the oldest if the window holds maxSize already. */
+  void add(long time, double amount, int ip, String ipText, String country, boolean charity, String receiver,
+      int maxSize) {
+    push(time, amount, ip, maxSize);
+
+    // Welford's online mean and variance.
+    count++;
+    double delta = amount - meanAmount;
+    meanAmount += delta / count;
+    sumSquaredDeviation += delta * (amount - meanAmount);
+    maxAmount = Math.max(maxAmount, amount);
+
+    lastTime = Math.max(lastTime, time);
+    if (ipText != null) {
+      lastIp = ipText;
+      lastCountry = country;
+    }
+    lastAmount = amount;
+    lastWasCharity = charity;
+    if (charity) {
+      lastCharityReceiver = receiver;
+      lastCharityAmount = amount;
+    }
+  }
+
+  /**
+   * Writes the card's state; {@link #readFrom} restores it. Window
+   * aggregates are left out, as they are rebuilt from the transactions.
+   */
+  void writeTo(ByteBuffer out) {
+    out.putInt(size);
+    for (int i = 0; i < size; i++) {
+      int slot = (head + i) % times.length;
+      out.putLong(times[slot]).putDouble(amounts[slot]).putInt(ips[slot]);
+    }
+    out.putLong(count).putDouble(meanAmount).putDouble(sumSquaredDeviation).putDouble(maxAmount).putLong(lastTime);
+    putString(out, lastIp);
+    putString(out, lastCountry);
+    out.putDouble(lastAmount).put((byte) (lastWasCharity ? 1 : 0));
+    putString(out, lastCharityReceiver);
+    out.putDouble(lastCharityAmount);
+  }
+
+  /** Returns at least as many bytes as {@link #writeTo} writes. */
+  int maxEncodedSize() {
+    return 4 + size * 20 + 5 * 8 + 2 * 8 + 1 + maxSize(lastIp) + maxSize(lastCountry) + maxSize(lastCharityReceiver);
+  }
+
+  /** Reads a card's state written by {@link #writeTo}, keeping at most maxSize transactions. */
+  static CardWindow readFrom(ByteBuffer in, int maxSize) {
+    CardWindow window = new CardWindow();
+    int entries = in.getInt();
+    for (int i = 0; i < entries; i++) {
+      window.push(in.getLong(), in.getDouble(), in.getInt(), maxSize);
+    }
+    window.count = in.getLong();
+    window.meanAmount = in.getDouble();
+    window.sumSquaredDeviation = in.getDouble();
+    window.maxAmount = in.getDouble();
+    window.lastTime = in.getLong();
+    window.lastIp = getString(in);
+    window.lastCountry = getString(in);
+    window.lastAmount = in.getDouble();
+    window.lastWasCharity = in.get() != 0;
+    window.lastCharityReceiver = getString(in);
+    window.lastCharityAmount = in.getDouble();
+    return window;
+  }
+
+  /** Returns the time of the last transaction in the state {@link #writeTo} wrote at position. */
+  static long lastTimeAt(ByteBuffer in, int position) {
+    int entries = in.getInt(position);
+    return in.getLong(position + 4 + entries * 20 + 4 * 8);
+  }
+
+  private static void putString(ByteBuffer out, String value) {
+    if (value == null) {
+      out.putInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.putInt(bytes.length).put(bytes);
+  }
+
+  private static String getString(ByteBuffer in) {
+    int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int maxSize(String value) {
+    return 4 + (value == null ? 0 : value.length() * 3);
+  }
+
+  /** Adds a transaction to the window only. */
+  private void push(long time, double amount, int ip, int maxSize) {
+    if (size == maxSize) {
+      removeOldest();
+    }
+    if (size == times.length) {
+      grow(Math.min(times.length * 2, maxSize));
+    }
+    if (!inWindow(ip)) {
+      windowDistinctIps++;
+    }
+    int slot = (head + size) % times.length;
+    times[slot] = time;
+    amounts[slot] = amount;
+    ips[slot] = ip;
+    size++;
+    windowSum += amount;
+    windowMax = Math.max(windowMax, amount);
+  }
+
+  private void removeOldest() {
+    double amount = amounts[head];
+    int ip = ips[head];
+    head = (head + 1) % times.length;
+    size--;
+    if (size == 0) {
+      // Start from exact zeros rather than let rounding accumulate.
+      windowSum = 0;
+      windowMax = 0;
+      windowDistinctIps = 0;
+      return;
+    }
+    windowSum -= amount;
+    if (!inWindow(ip)) {
+      windowDistinctIps--;
+    }
+    if (amount >= windowMax) {
+      windowMax = 0;
+      for (int i = 0; i < size; i++) {
+        windowMax = Math.max(windowMax, amounts[(head + i) % times.length]);
+      }
+    }
+  }
+
+  // Scans at most the window capacity, a small constant.
+  private boolean inWindow(int ip) {
+    for (int i = 0; i < size; i++) {
+      if (ips[(head + i) % times.length] == ip) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void grow(int capacity) {
+    long[] newTimes = new long[capacity];
+    double[] newAmounts = new double[capacity];
+    int[] newIps = new int[capacity];
+    for (int i = 0; i < size; i++) {
+      int slot = (head + i) % times.length;
+      newTimes[i] = times[slot];
+      newAmounts[i] = amounts[slot];
+      newIps[i] = ips[slot];
+    }
+    times = newTimes;
+    amounts = newAmounts;
+    ips = newIps;
+    head = 0;
+  }
+}
@@ -0,0 +1,408 @@
+package features;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Config;
+import geo.GeoIndex;
+import scoring.Charities;
+
+/**
+ * Per-card features kept up to date as transactions arrive, so neither the
+ * pre-scorer nor the prompt has to re-derive them from the card's history.
+ * Besides lifetime aggregates, each card has a sliding window over the
+ * transaction timestamps holding the count, total and largest amount and
+ * the distinct IP addresses of its recent transactions.
+ *
+ * <p>Each card's window is a ring of primitive arrays that holds at most
+ * FEATURE_WINDOW_CAPACITY transactions, so updating it takes constant time
+ * and a card's memory is bounded; with more transactions than that inside
+ * the window, the oldest are dropped early. Cards are evicted when idle for
+ * FEATURE_IDLE_MINUTES or, least recently used first, beyond
+ * FEATURE_MAX_CARDS.
+ *
+ * <p>With a snapshot file, the store survives restarts. {@link #snapshot}
+ * appends the cards changed since the last call to the file, rewriting it
+ * whole once it holds more stale records than live ones, and
+ * {@link #restoreFrom} maps an existing snapshot and indexes it in the
+ * background. Cards are then decoded one at a time as their next
+ * transaction arrives, so even a large snapshot is usable within seconds
+ * and serving is never held up: a card first seen while the snapshot is
+ * still being indexed simply starts afresh.
+ *
+ * <p>{@link #record} must be called in each card's scheduler lane, in order.
+ */
+public class FeatureStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(FeatureStore.class);
+
+  private final long windowMillis;
+  private final int windowCapacity;
+  private final long idleMinutes;
+  private final Cache<String, CardWindow> windows;
+
+  // Snapshot state; snapshotPath is null when snapshots are off.
+  private volatile Path snapshotPath;
+  private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+  private SnapshotFile appender;
+  private final LongAdder restored = new LongAdder();
+  // Guards the three fields below. While a snapshot is being indexed, the
+  // cards first seen meanwhile are noted so that their stale records are
+  // dropped from the index once it is ready. The index is dropped once all
+  // its cards are claimed or those left have been idle for idleMinutes.
+  private final Object restoreLock = new Object();
+  private SnapshotIndex restoreIndex;
+  private Set<String> seenWhileRestoring;
+  private long restoreExpiresAt;
+
+  public FeatureStore(long windowMillis, int windowCapacity, long maxCards, long idleMinutes) {
+    this.windowMillis = windowMillis;
+    this.windowCapacity = windowCapacity;
+    this.idleMinutes = idleMinutes;
+    windows = CacheBuilder.newBuilder()
+        .maximumSize(maxCards)
+        .expireAfterAccess(idleMinutes, TimeUnit.MINUTES)
+        .build();
+  }
+
+  /**
+   * Creates the store from configuration. If FEATURE_SNAPSHOT_PATH is set, it
+   * restores from that file and snapshots to it every
+   * FEATURE_SNAPSHOT_INTERVAL_SECONDS.
+   */
+  public static FeatureStore fromConfig() {
+    FeatureStore store = new FeatureStore(
+        TimeUnit.MINUTES.toMillis(windowMinutesFromConfig()),
+        Config.getInt("FEATURE_WINDOW_CAPACITY", 32),
+        Config.getLong("FEATURE_MAX_CARDS", 1_000_000),
+        Config.getLong("FEATURE_IDLE_MINUTES", 24 * 60));
+    String snapshot = Config.getString("FEATURE_SNAPSHOT_PATH", null);
+    if (snapshot != null) {
+      store.restoreFrom(Path.of(snapshot));
+      long interval = Config.getLong("FEATURE_SNAPSHOT_INTERVAL_SECONDS", 30);
+      ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "feature-snapshot");
+        thread.setDaemon(true);
+        return thread;
+      });
+      snapshots.scheduleWithFixedDelay(store::snapshotQuietly, interval, interval, TimeUnit.SECONDS);
+    }
+    return store;
+  }
+
+  /** Returns the window length FEATURE_WINDOW_MINUTES sets. */
+  public static long windowMinutesFromConfig() {
+    return Config.getLong("FEATURE_WINDOW_MINUTES", 60);
+  }
+
+  public long windowMinutes() {
+    return TimeUnit.MILLISECONDS.toMinutes(windowMillis);
+  }
+
+  /** Returns how many cards have features. */
+  public long size() {
+    return windows.size();
+  }
+
+  /** Returns how many cards were restored from the snapshot so far. */
+  public long restoredCount() {
+    return restored.sum();
+  }
+
+  /**
+   * Restores cards from the snapshot file, if there is one, as they are
+   * next seen, and makes {@link #snapshot} write to it. Returns at once; the
+   * future completes when the snapshot has been indexed. A snapshot older
+   * than FEATURE_IDLE_MINUTES, or that cannot be read, is ignored, as are
+   * cards idle that long before the snapshot's newest transaction.
+   */
+  public CompletableFuture<Void> restoreFrom(Path file) {
+    snapshotPath = file;
+    try {
+      if (!Files.exists(file) || Files.getLastModifiedTime(file).toMillis()
+          < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(idleMinutes)) {
+        return CompletableFuture.completedFuture(null);
+      }
+    } catch (IOException e) {
+      logger.warn("Could not read feature snapshot {}", file, e);
+      return CompletableFuture.completedFuture(null);
+    }
+    synchronized (restoreLock) {
+      seenWhileRestoring = new HashSet<>();
+      restoreExpiresAt = System.nanoTime() + TimeUnit.MINUTES.toNanos(idleMinutes);
+    }
+    CompletableFuture<Void> indexed = new CompletableFuture<>();
+    Thread indexer = new Thread(() -> {
+      long start = System.nanoTime();
+      SnapshotIndex index = null;
+      try {
+        index = SnapshotIndex.open(file, TimeUnit.MINUTES.toMillis(idleMinutes));
+      } catch (IOException | RuntimeException e) {
+        logger.warn("Could not restore feature snapshot {}, starting afresh", file, e);
+      }
+      synchronized (restoreLock) {
+        if (index != null) {
+          for (String card : seenWhileRestoring) {
+            index.claim(card);
+          }
+          logger.info("Indexed feature snapshot of {} cards in {} ms", index.unclaimed(),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        restoreIndex = index;
+        seenWhileRestoring = null;
+        dropRestoreIndexIfDone();
+      }
+      indexed.complete(null);
+    }, "feature-restore");
+    indexer.setDaemon(true);
+    indexer.start();
+    return indexed;
+  }
+
+  /**
+   * Writes the cards changed since the last snapshot to the snapshot file.
+   * Does nothing without a snapshot file or while one is being restored.
+   */
+  public synchronized void snapshot() throws IOException {
+    Path file = snapshotPath;
+    if (file == null) {
+      return;
+    }
+    long live;
+    synchronized (restoreLock) {
+      if (seenWhileRestoring != null) {
+        return;
+      }
+      dropRestoreIndexIfDone();
+      live = windows.size() + (restoreIndex == null ? 0 : restoreIndex.unclaimed());
+    }
+    if (appender == null || appender.records() > 2 * live + 1024) {
+      writeFull(file);
+      return;
+    }
+    for (Iterator<String> cards = dirty.iterator(); cards.hasNext(); ) {
+      String card = cards.next();
+      cards.remove();
+      CardWindow window = windows.asMap().get(card);
+      if (window != null) {
+        appender.add(card, window);
+      }
+    }
+    appender.flush();
+  }
+
+  /**
+   * Rewrites the snapshot with every card, restored or not, and replaces
+   * the old file atomically. Records still waiting in the old snapshot are
+   * copied first, so that a card restored meanwhile is superseded by its
+   * current state.
+   */
+  private void writeFull(Path file) throws IOException {
+    long start = System.nanoTime();
+    if (appender != null) {
+      appender.close();
+      appender = null;
+    }
+    dirty.clear();
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    long records;
+    try (SnapshotFile full = SnapshotFile.create(temporary)) {
+      // Collected under the lock, since loads claim records meanwhile, and
+      // written outside it, so they are not held up by the disk.
+      List<ByteBuffer> unclaimed = new ArrayList<>();
+      synchronized (restoreLock) {
+        if (restoreIndex != null) {
+          restoreIndex.forEachUnclaimed(unclaimed::add);
+        }
+      }
+      for (ByteBuffer record : unclaimed) {
+        full.addRecord(record);
+      }
+      for (Map.Entry<String, CardWindow> entry : windows.asMap().entrySet()) {
+        full.add(entry.getKey(), entry.getValue());
+      }
+      full.flush();
+      records = full.records();
+    }
+    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    appender = SnapshotFile.append(file, records);
+    logger.info("Wrote feature snapshot of {} cards in {} ms", records,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private void snapshotQuietly() {
+    try {
+      snapshot();
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Could not write feature snapshot", e);
+    }
+  }
+
+  /**
+   * Returns the card's features as they were just before the transaction,
+   * then adds the transaction to them.
+   */
+  public CardFeatures record(String card, JsonObject transaction) {
+    CardWindow window;
+    try {
+      window = windows.get(card, () -> load(card));
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    long time = parseTimestamp(getString(transaction, "timestamp"));
+    double amount = getDouble(transaction, "amount");
+    String ip = getString(transaction, "ip_address");
+    String receiver = getString(transaction, "receiver");
+    CardFeatures features;
+    synchronized (window) {
+      if (time == Long.MIN_VALUE) {
+        time = window.count == 0 ? System.currentTimeMillis() : window.lastTime;
+      }
+      window.expire(time - windowMillis);
+      features = window.count == 0 ? CardFeatures.NONE : new CardFeatures(window, time);
+      window.add(time, amount, ipKey(ip), ip, getString(transaction, "ip_country"),
+          Charities.isCharity(receiver), receiver, windowCapacity);
+    }
+    if (snapshotPath != null) {
+      dirty.add(card);
+    }
+    return features;
+  }
+
+  /** Restores the card from the snapshot, or starts it afresh. */
+  private CardWindow load(String card) {
+    ByteBuffer saved;
+    synchronized (restoreLock) {
+      if (seenWhileRestoring != null) {
+        seenWhileRestoring.add(card);
+        return new CardWindow();
+      }
+      saved = restoreIndex == null ? null : restoreIndex.claim(card);
+      dropRestoreIndexIfDone();
+    }
+    if (saved == null) {
+      return new CardWindow();
+    }
+    restored.increment();
+    return CardWindow.readFrom(saved, windowCapacity);
+  }
+
+  /**
+   * Lets go of the snapshot index, and the mapping behind it, once no card
+   * is left to restore from it. Called with restoreLock held.
+   */
+  private void dropRestoreIndexIfDone() {
+    if (restoreIndex != null
+        && (restoreIndex.unclaimed() == 0 || System.nanoTime() - restoreExpiresAt > 0)) {
+      restoreIndex = null;
+    }
+  }
+
+  /** Packs an IPv4 address into an int; other addresses are hashed. */
+  private static int ipKey(String ip) {
+    if (ip == null) {
+      return 0;
+    }
+    long address = GeoIndex.parseAddress(ip);
+    return address < 0 ? ip.hashCode() : (int) address;
+  }
+
+  /**
+   * Parses a timestamp such as 2025-09-18T11:47:02.814, read as UTC, into
+   * epoch milliseconds without allocating. Seconds and their fraction may be
+   * left out. Returns Long.MIN_VALUE if it is not in that form.
+   */
+  static long parseTimestamp(String text) {
+    if (text == null || text.length() < 16 || text.charAt(4) != '-' || text.charAt(7) != '-'
+        || text.charAt(10) != 'T' || text.charAt(13) != ':') {
+      return Long.MIN_VALUE;
+    }
+    if (text.length() > 16 && (text.length() < 19 || text.charAt(16) != ':')) {
+      return Long.MIN_VALUE;
+    }
+    int year = digits(text, 0, 4);
+    int month = digits(text, 5, 2);
+    int day = digits(text, 8, 2);
+    int hour = digits(text, 11, 2);
+    int minute = digits(text, 14, 2);
+    int second = text.length() > 16 ? digits(text, 17, 2) : 0;
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+        || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return Long.MIN_VALUE;
+    }
+    int millis = 0;
+    if (text.length() > 19) {
+      if (text.charAt(19) != '.') {
+        return Long.MIN_VALUE;
+      }
+      // Fractions beyond milliseconds are ignored.
+      int scale = 100;
+      for (int i = 20; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c < '0' || c > '9') {
+          return Long.MIN_VALUE;
+        }
+        millis += (c - '0') * scale;
+        scale /= 10;
+      }
+    }
+    long days = daysFromCivil(year, month, day);
+    return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+  }
+
+  private static int digits(String text, int start, int length) {
+    int value = 0;
+    for (int i = start; i < start + length; i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /** Days since 1970-01-01 of a proleptic Gregorian date (Howard Hinnant's algorithm). */
+  private static long daysFromCivil(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = Math.floorDiv(y, 400);
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+
+  private static double getDouble(JsonObject transaction, String field) {
+    JsonElement element = transaction.get(field);
+    return element == null || element.isJsonNull() ? 0.0 : element.getAsDouble();
+  }
+
+  private static String getString(JsonObject transaction, String field) {
+    JsonElement element = transaction.get(field);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+}
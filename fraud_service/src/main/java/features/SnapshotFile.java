@@ -0,0 +1,128 @@
+package features;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a feature store snapshot: a header, then segments of card records
+ * appended over time. A record holds a card number and its
+ * {@link CardWindow}; when a card has several, the last one wins. Each
+ * segment carries its length and a CRC, so one torn by a crash is detected
+ * and it and anything after it are ignored.
+ *
+ * <p>Layout, little-endian: magic "FSN1"; per segment, magic "SEGM", record
+ * count, payload length, payload and the payload's CRC-32; per record, its
+ * length after that field, the card number's length and UTF-8 bytes, then
+ * the card's state.
+ */
+final class SnapshotFile implements Closeable {
+
+  static final int FILE_MAGIC = 0x46534e31; // "FSN1"
+  static final int SEGMENT_MAGIC = 0x5345474d; // "SEGM"
+  static final int HEADER_BYTES = 4;
+  static final int SEGMENT_HEADER_BYTES = 12;
+  private static final int SEGMENT_BYTES = 4 << 20;
+
+  private final FileChannel channel;
+  private final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+  private final CRC32 crc = new CRC32();
+  private ByteBuffer payload = ByteBuffer.allocate(SEGMENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  private int segmentRecords;
+  private long records;
+
+  private SnapshotFile(FileChannel channel, long records) {
+    this.channel = channel;
+    this.records = records;
+  }
+
+  /** Creates or truncates the file and writes its header. */
+  static SnapshotFile create(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    ByteBuffer magic = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN).putInt(FILE_MAGIC).flip();
+    while (magic.hasRemaining()) {
+      channel.write(magic);
+    }
+    return new SnapshotFile(channel, 0);
+  }
+
+  /** Opens a file written by {@link #create} to append to it. */
+  static SnapshotFile append(Path path, long records) throws IOException {
+    return new SnapshotFile(FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND), records);
+  }
+
+  /** Returns how many records the file holds, including those not yet flushed. */
+  long records() {
+    return records;
+  }
+
+  /** Adds the card's current state. */
+  void add(String card, CardWindow window) throws IOException {
+    byte[] cardBytes = card.getBytes(StandardCharsets.UTF_8);
+    synchronized (window) {
+      reserve(8 + cardBytes.length + window.maxEncodedSize());
+      int start = payload.position();
+      payload.putInt(0).putInt(cardBytes.length).put(cardBytes);
+      window.writeTo(payload);
+      payload.putInt(start, payload.position() - start - 4);
+    }
+    segmentRecords++;
+    records++;
+  }
+
+  /** Adds a record read from another snapshot, from its length field on. */
+  void addRecord(ByteBuffer record) throws IOException {
+    reserve(record.remaining());
+    payload.put(record);
+    segmentRecords++;
+    records++;
+  }
+
+  /** Writes out the records added so far and forces them to disk. */
+  void flush() throws IOException {
+    writeSegment();
+    channel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void reserve(int bytes) throws IOException {
+    if (payload.remaining() >= bytes) {
+      return;
+    }
+    writeSegment();
+    if (payload.capacity() < bytes) {
+      payload = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  private void writeSegment() throws IOException {
+    if (segmentRecords == 0) {
+      return;
+    }
+    payload.flip();
+    crc.reset();
+    crc.update(payload.duplicate());
+    header.clear();
+    header.putInt(SEGMENT_MAGIC).putInt(segmentRecords).putInt(payload.remaining()).flip();
+    trailer.clear();
+    trailer.putInt((int) crc.getValue()).flip();
+    ByteBuffer[] buffers = {header, payload, trailer};
+    while (trailer.hasRemaining()) {
+      channel.write(buffers);
+    }
+    payload.clear();
+    segmentRecords = 0;
+  }
+}
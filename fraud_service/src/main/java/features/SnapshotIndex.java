@@ -0,0 +1,226 @@
+package features;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot written by {@link SnapshotFile}, memory-mapped and indexed by
+ * card so that each card's state can be decoded when the card is next seen
+ * rather than all at startup. Indexing only reads the card numbers; it keeps
+ * each card's latest record in an open-addressing table of file offsets, so
+ * it allocates nothing per card.
+ *
+ * <p>Cards whose last transaction is older than the newest in the snapshot
+ * by more than the idle limit are left out, as the store would have evicted
+ * them.
+ *
+ * <p>A card's record is handed out once: claiming it removes it from the
+ * index, so a card that is later evicted from the store starts afresh
+ * instead of being restored again. Claims must not run concurrently.
+ */
+final class SnapshotIndex {
+
+  private static final int EMPTY = 0;
+  private static final int CLAIMED = -1;
+
+  private final ByteBuffer mapped;
+  // Offset of each indexed record's length field plus one; EMPTY or CLAIMED otherwise.
+  private final int[] slots;
+  private final int mask;
+  private int unclaimed;
+
+  private SnapshotIndex(ByteBuffer mapped, int records, int end, long maxIdleMillis) {
+    this.mapped = mapped;
+    int capacity = Integer.highestOneBit(Math.max(records, 8) * 2 - 1) << 1;
+    slots = new int[capacity];
+    mask = capacity - 1;
+    index(end, maxIdleMillis);
+  }
+
+  /**
+   * Maps and indexes the snapshot, leaving out cards idle for more than
+   * maxIdleMillis before its newest transaction. Segments after one that is
+   * incomplete or corrupt are ignored.
+   */
+  static SnapshotIndex open(Path file, long maxIdleMillis) throws IOException {
+    ByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot larger than 2 GB: " + file);
+      }
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    if (mapped.limit() < SnapshotFile.HEADER_BYTES || mapped.getInt(0) != SnapshotFile.FILE_MAGIC) {
+      throw new IOException("Not a feature snapshot: " + file);
+    }
+    // Check the segments and count their records, to size the table.
+    CRC32 crc = new CRC32();
+    long records = 0;
+    int position = SnapshotFile.HEADER_BYTES;
+    for (int length; (length = segmentPayloadLength(mapped, position, crc)) >= 0; ) {
+      records += mapped.getInt(position + 4);
+      position += SnapshotFile.SEGMENT_HEADER_BYTES + length + 4;
+    }
+    return new SnapshotIndex(mapped, (int) Math.min(records, Integer.MAX_VALUE / 2), position,
+        maxIdleMillis);
+  }
+
+  /** Returns how many cards have a record that has not been claimed. */
+  int unclaimed() {
+    return unclaimed;
+  }
+
+  /**
+   * Returns the card's state, positioned for {@link CardWindow#readFrom}, and
+   * removes it from the index, or returns null if it has none.
+   */
+  ByteBuffer claim(String card) {
+    byte[] key = card.getBytes(StandardCharsets.UTF_8);
+    int slot = find(key, 0, key.length, hash(key));
+    if (slot < 0) {
+      return null;
+    }
+    int offset = slots[slot] - 1;
+    slots[slot] = CLAIMED;
+    unclaimed--;
+    int cardLength = mapped.getInt(offset + 4);
+    return mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(offset + 8 + cardLength);
+  }
+
+  /** Passes each unclaimed record, from its length field on, to the consumer. */
+  void forEachUnclaimed(Consumer<ByteBuffer> consumer) {
+    for (int slot : slots) {
+      if (slot > 0) {
+        int offset = slot - 1;
+        consumer.accept(mapped.slice(offset, 4 + mapped.getInt(offset)).order(ByteOrder.LITTLE_ENDIAN));
+      }
+    }
+  }
+
+  /** Returns the payload length of the intact segment at position, or -1. */
+  private static int segmentPayloadLength(ByteBuffer mapped, int position, CRC32 crc) {
+    if (mapped.limit() - position < SnapshotFile.SEGMENT_HEADER_BYTES
+        || mapped.getInt(position) != SnapshotFile.SEGMENT_MAGIC) {
+      return -1;
+    }
+    int payloadLength = mapped.getInt(position + 8);
+    int payloadStart = position + SnapshotFile.SEGMENT_HEADER_BYTES;
+    if (payloadLength < 0 || (long) mapped.limit() - payloadStart < (long) payloadLength + 4) {
+      return -1;
+    }
+    crc.reset();
+    crc.update(mapped.slice(payloadStart, payloadLength));
+    return (int) crc.getValue() == mapped.getInt(payloadStart + payloadLength) ? payloadLength : -1;
+  }
+
+  /**
+   * Indexes the records of the segments before end, which have been checked,
+   * whose last transaction is at most maxIdleMillis older than the newest.
+   */
+  private void index(int end, long maxIdleMillis) {
+    long newest = Long.MIN_VALUE;
+    for (int position = SnapshotFile.HEADER_BYTES; position < end; ) {
+      int offset = position + SnapshotFile.SEGMENT_HEADER_BYTES;
+      int payloadEnd = offset + mapped.getInt(position + 8);
+      for (; offset < payloadEnd; offset += 4 + mapped.getInt(offset)) {
+        newest = Math.max(newest, lastTime(offset));
+      }
+      position = payloadEnd + 4;
+    }
+    long oldest = newest - maxIdleMillis;
+    for (int position = SnapshotFile.HEADER_BYTES; position < end; ) {
+      int offset = position + SnapshotFile.SEGMENT_HEADER_BYTES;
+      int payloadEnd = offset + mapped.getInt(position + 8);
+      for (; offset < payloadEnd; offset += 4 + mapped.getInt(offset)) {
+        // A card's later records are never older, so a record left out is
+        // never one that would have replaced a record kept.
+        if (lastTime(offset) >= oldest) {
+          insert(offset);
+        }
+      }
+      position = payloadEnd + 4;
+    }
+  }
+
+  /** Returns the time of the last transaction in the record at offset. */
+  private long lastTime(int offset) {
+    return CardWindow.lastTimeAt(mapped, offset + 8 + mapped.getInt(offset + 4));
+  }
+
+  private void insert(int offset) {
+    int cardStart = offset + 8;
+    int cardLength = mapped.getInt(offset + 4);
+    int hash = hash(mapped, cardStart, cardLength);
+    int slot = find(null, cardStart, cardLength, hash);
+    if (slot >= 0) {
+      // A later record for the same card replaces the earlier one.
+      slots[slot] = offset + 1;
+      return;
+    }
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      if (slots[i] == EMPTY) {
+        slots[i] = offset + 1;
+        unclaimed++;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the slot of the card whose UTF-8 bytes are key, or, if key is
+   * null, are at start in the mapped file; or -1 if it has none.
+   */
+  private int find(byte[] key, int start, int length, int hash) {
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      int slot = slots[i];
+      if (slot == EMPTY) {
+        return -1;
+      }
+      if (slot != CLAIMED && matches(slot - 1, key, start, length)) {
+        return i;
+      }
+    }
+  }
+
+  private boolean matches(int offset, byte[] key, int start, int length) {
+    if (mapped.getInt(offset + 4) != length) {
+      return false;
+    }
+    int cardStart = offset + 8;
+    for (int i = 0; i < length; i++) {
+      byte expected = key == null ? mapped.get(start + i) : key[i];
+      if (mapped.get(cardStart + i) != expected) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(byte[] key) {
+    int hash = 0;
+    for (byte b : key) {
+      hash = 31 * hash + b;
+    }
+    return mix(hash);
+  }
+
+  private static int hash(ByteBuffer buffer, int start, int length) {
+    int hash = 0;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + buffer.get(i);
+    }
+    return mix(hash);
+  }
+
+  private static int mix(int hash) {
+    hash *= 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+}
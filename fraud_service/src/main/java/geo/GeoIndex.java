@@ -0,0 +1,289 @@
+package geo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import config.Config;
+
+/**
+ * Maps IPv4 addresses to countries. The ranges from an IP-to-country CSV are
+ * compiled once into a binary index file of sorted primitive arrays, which
+ * is memory-mapped, so opening it costs nothing however large it is and
+ * lookups are a binary search over the mapped arrays that does not allocate.
+ *
+ * <p>The CSV has one range per line: the first and last address of the
+ * range, either dotted or as unsigned integers, then the country code. Extra
+ * columns, quotes, a header line and IPv6 ranges are ignored, which covers
+ * the common free country databases.
+ *
+ * <p>Index layout, little-endian: magic, range count, country count, a table
+ * of the first range starting in each /16 block, which narrows each search
+ * to the few ranges around the address, then the range starts, the range
+ * ends (both as ints with the sign bit flipped so that they sort as signed
+ * values), the country of each range as a short and finally the country
+ * codes as length-prefixed UTF-8.
+ */
+public class GeoIndex {
+
+  private static final int MAGIC = 0x47454f31; // "GEO1"
+  private static final int HEADER_BYTES = 12;
+  private static final int BLOCKS = 1 << 16;
+  private static final int BLOCK_TABLE_BYTES = (BLOCKS + 1) * 4;
+  private static final int ARRAYS_OFFSET = HEADER_BYTES + BLOCK_TABLE_BYTES;
+
+  private final int size;
+  private final IntBuffer blockStarts;
+  private final IntBuffer starts;
+  private final IntBuffer ends;
+  private final ShortBuffer countryIndexes;
+  private final String[] countries;
+
+  private GeoIndex(MappedByteBuffer mapped) {
+    mapped.order(ByteOrder.LITTLE_ENDIAN);
+    if (mapped.getInt(0) != MAGIC) {
+      throw new IllegalStateException("Not a geo index file");
+    }
+    size = mapped.getInt(4);
+    int countryCount = mapped.getInt(8);
+    blockStarts = slice(mapped, HEADER_BYTES, BLOCK_TABLE_BYTES).asIntBuffer();
+    starts = slice(mapped, ARRAYS_OFFSET, size * 4).asIntBuffer();
+    ends = slice(mapped, ARRAYS_OFFSET + size * 4, size * 4).asIntBuffer();
+    countryIndexes = slice(mapped, ARRAYS_OFFSET + size * 8, size * 2).asShortBuffer();
+    countries = new String[countryCount];
+    int position = ARRAYS_OFFSET + size * 10;
+    for (int i = 0; i < countryCount; i++) {
+      int length = mapped.get(position) & 0xff;
+      byte[] code = new byte[length];
+      mapped.get(position + 1, code);
+      countries[i] = new String(code, StandardCharsets.UTF_8);
+      position += 1 + length;
+    }
+  }
+
+  /**
+   * Opens the index for the CSV at GEOIP_CSV, compiling it first if needed,
+   * or returns null if GEOIP_CSV is not set.
+   */
+  public static GeoIndex fromConfig() {
+    String csv = Config.getString("GEOIP_CSV", null);
+    if (csv == null) {
+      return null;
+    }
+    try {
+      return forCsv(Path.of(csv));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not load GEOIP_CSV " + csv, e);
+    }
+  }
+
+  /**
+   * Opens the index kept next to the CSV as CSV.idx, compiling it first if
+   * it is missing or older than the CSV.
+   */
+  public static GeoIndex forCsv(Path csv) throws IOException {
+    Path index = csv.resolveSibling(csv.getFileName() + ".idx");
+    if (!Files.exists(index)
+        || Files.getLastModifiedTime(index).compareTo(Files.getLastModifiedTime(csv)) < 0) {
+      build(csv, index);
+    }
+    return open(index);
+  }
+
+  /** Memory-maps a compiled index. */
+  public static GeoIndex open(Path index) throws IOException {
+    try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+      return new GeoIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Compiles the CSV into an index file, replacing it atomically. */
+  public static void build(Path csv, Path index) throws IOException {
+    int[] starts = new int[1024];
+    int[] ends = new int[1024];
+    short[] countryIndexes = new short[1024];
+    Map<String, Short> countries = new LinkedHashMap<>();
+    int count = 0;
+    try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split(",", 4);
+        if (fields.length < 3) {
+          continue;
+        }
+        long start = parseAddress(unquote(fields[0]));
+        long end = parseAddress(unquote(fields[1]));
+        String country = unquote(fields[2]);
+        if (start < 0 || end < start || country.isEmpty()) {
+          // A header, an IPv6 range or a malformed line.
+          continue;
+        }
+        if (count == starts.length) {
+          starts = Arrays.copyOf(starts, count * 2);
+          ends = Arrays.copyOf(ends, count * 2);
+          countryIndexes = Arrays.copyOf(countryIndexes, count * 2);
+        }
+        if (!countries.containsKey(country) && countries.size() == Short.MAX_VALUE) {
+          throw new IOException("Too many distinct countries in " + csv);
+        }
+        starts[count] = flip((int) start);
+        ends[count] = flip((int) end);
+        countryIndexes[count] = countries.computeIfAbsent(country, code -> (short) countries.size());
+        count++;
+      }
+    }
+
+    // Sort by range start, carrying the row along in the low bits.
+    long[] order = new long[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = ((long) starts[i] << 32) | i;
+    }
+    Arrays.sort(order);
+
+    byte[][] codes = countries.keySet().stream()
+        .map(code -> code.getBytes(StandardCharsets.UTF_8))
+        .toArray(byte[][]::new);
+    int codeBytes = 0;
+    for (byte[] code : codes) {
+      if (code.length > 255) {
+        throw new IOException("Country code too long in " + csv);
+      }
+      codeBytes += 1 + code.length;
+    }
+    ByteBuffer out = ByteBuffer.allocate(ARRAYS_OFFSET + count * 10 + codeBytes).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(MAGIC).putInt(count).putInt(codes.length);
+    int range = 0;
+    for (int block = 0; block <= BLOCKS; block++) {
+      // The first range whose start is in this block or later.
+      while (range < count && flip((int) (order[range] >> 32)) >>> 16 < block) {
+        range++;
+      }
+      out.putInt(range);
+    }
+    for (long entry : order) {
+      out.putInt(starts[(int) entry]);
+    }
+    for (long entry : order) {
+      out.putInt(ends[(int) entry]);
+    }
+    for (long entry : order) {
+      out.putShort(countryIndexes[(int) entry]);
+    }
+    for (byte[] code : codes) {
+      out.put((byte) code.length).put(code);
+    }
+    out.flip();
+
+    Path temporary = index.resolveSibling(index.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+    }
+    Files.move(temporary, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the country code for an address given as a dotted IPv4 string,
+   * or null if it is not a valid address or not in any range.
+   */
+  public String country(CharSequence ip) {
+    long address = parseAddress(ip);
+    return address < 0 ? null : country((int) address);
+  }
+
+  /** Returns the country code for an IPv4 address packed into an int, or null. */
+  public String country(int ip) {
+    int index = find(ip);
+    return index < 0 ? null : countries[countryIndexes.get(index)];
+  }
+
+  /** Returns the index of the range holding the address, or -1. */
+  private int find(int ip) {
+    int key = flip(ip);
+    int block = ip >>> 16;
+    // Ranges before the block's first start before the address and ranges
+    // from the next block's first start after it, so the answer is between.
+    int low = Math.max(blockStarts.get(block) - 1, 0);
+    int high = blockStarts.get(block + 1) - 1;
+    // Find the last range that starts at or before the address.
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (starts.get(mid) <= key) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high >= 0 && ends.get(high) >= key ? high : -1;
+  }
+
+  /**
+   * Parses a dotted IPv4 address, or an unsigned integer as some databases
+   * store them, into its unsigned value. Returns -1 if it is neither.
+   */
+  public static long parseAddress(CharSequence text) {
+    long address = 0;
+    long octet = 0;
+    int digits = 0;
+    int dots = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        octet = octet * 10 + (c - '0');
+        if (++digits > 10) {
+          return -1;
+        }
+      } else if (c == '.' && digits > 0 && dots < 3 && octet <= 255) {
+        address = (address << 8) | octet;
+        octet = 0;
+        digits = 0;
+        dots++;
+      } else {
+        return -1;
+      }
+    }
+    if (digits == 0) {
+      return -1;
+    }
+    if (dots == 0) {
+      return octet <= 0xffffffffL ? octet : -1;
+    }
+    return dots == 3 && octet <= 255 ? (address << 8) | octet : -1;
+  }
+
+  private static int flip(int value) {
+    return value ^ Integer.MIN_VALUE;
+  }
+
+  private static String unquote(String field) {
+    String trimmed = field.trim();
+    if (trimmed.length() >= 2 && trimmed.charAt(0) == '"' && trimmed.charAt(trimmed.length() - 1) == '"') {
+      return trimmed.substring(1, trimmed.length() - 1).trim();
+    }
+    return trimmed;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    return buffer.slice(offset, length).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
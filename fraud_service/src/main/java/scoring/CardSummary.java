@@ -0,0 +1,99 @@
+package scoring;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import features.CardFeatures;
+
+/**
+ * A fixed-size digest of a card's past transactions that stands in for the
+ * raw conversation history in the model prompt. Its rendered size depends on
+ * the configured limits, not on how many transactions the card has made.
+ * Aggregates come from the card's {@link CardFeatures}; the summary itself
+ * keeps the latest transactions and the networks the card has used.
+ *
+ * <p>Only touched from the card's scheduler lane, so it needs no locking.
+ */
+public class CardSummary {
+
+  private final int maxRecent;
+  private final int maxNetworks;
+
+  private final Deque<JsonObject> recent = new ArrayDeque<>();
+  private final List<String> networks = new ArrayList<>();
+
+  public CardSummary(int maxRecent, int maxNetworks) {
+    this.maxRecent = maxRecent;
+    this.maxNetworks = maxNetworks;
+  }
+
+  /** Adds a transaction to the summary. */
+  public void record(JsonObject transaction) {
+    double amount = getDouble(transaction, "amount");
+    String ip = getString(transaction, "ip_address");
+    String receiver = getString(transaction, "receiver");
+
+    JsonObject compact = new JsonObject();
+    compact.addProperty("timestamp", getString(transaction, "timestamp"));
+    compact.addProperty("receiver", receiver);
+    compact.addProperty("amount", amount);
+    compact.addProperty("ip_address", ip);
+    String country = getString(transaction, "ip_country");
+    if (country != null) {
+      compact.addProperty("ip_country", country);
+    }
+    if (recent.size() == maxRecent) {
+      recent.removeFirst();
+    }
+    recent.addLast(compact);
+
+    String network = network(ip);
+    if (network != null && !networks.contains(network)) {
+      if (networks.size() == maxNetworks) {
+        networks.remove(0);
+      }
+      networks.add(network);
+    }
+  }
+
+  /**
+   * Renders the summary, with the card's features from before the
+   * transaction being scored, as a single-line JSON object.
+   */
+  public String render(CardFeatures features, long windowMinutes) {
+    JsonObject summary = features.toJson(windowMinutes);
+    JsonArray networkArray = new JsonArray();
+    networks.forEach(networkArray::add);
+    summary.add("ip_networks", networkArray);
+    JsonArray recentArray = new JsonArray();
+    recent.forEach(recentArray::add);
+    summary.add("recent_transactions", recentArray);
+    return summary.toString();
+  }
+
+  /** Returns the first two octets of an IPv4 address, e.g. "68.45.x.x". */
+  private static String network(String ip) {
+    if (ip == null) {
+      return null;
+    }
+    int first = ip.indexOf('.');
+    int second = first < 0 ? -1 : ip.indexOf('.', first + 1);
+    return second < 0 ? ip : ip.substring(0, second) + ".x.x";
+  }
+
+  private static double getDouble(JsonObject transaction, String field) {
+    JsonElement element = transaction.get(field);
+    return element == null || element.isJsonNull() ? 0.0 : element.getAsDouble();
+  }
+
+  private static String getString(JsonObject transaction, String field) {
+    JsonElement element = transaction.get(field);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+}
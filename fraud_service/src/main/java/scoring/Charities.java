@@ -0,0 +1,36 @@
+package scoring;
+
+import java.util.Locale;
+import java.util.Set;
+
+/** Recognizes payments to charities and non-profits by receiver name. */
+public final class Charities {
+
+  private static final Set<String> KNOWN = Set.of(
+      "American Red Cross", "Doctors Without Borders", "UNICEF", "Habitat for Humanity",
+      "St. Jude Children's Research Hospital", "The Humane Society", "WWF (World Wildlife Fund)",
+      "Sierra Club", "The Nature Conservancy", "Feeding America", "Goodwill Industries",
+      "The Salvation Army", "United Way", "Boys & Girls Clubs of America", "Make-A-Wish Foundation",
+      "Susan G. Komen", "American Cancer Society", "American Heart Association", "Save the Children",
+      "Shriners Hospitals for Children", "Wounded Warrior Project", "ASPCA", "Charity: Water");
+
+  private static final String[] KEYWORDS = {"charity", "foundation", "non-profit", "nonprofit"};
+
+  private Charities() {}
+
+  public static boolean isCharity(String receiver) {
+    if (receiver == null) {
+      return false;
+    }
+    if (KNOWN.contains(receiver)) {
+      return true;
+    }
+    String lower = receiver.toLowerCase(Locale.ROOT);
+    for (String keyword : KEYWORDS) {
+      if (lower.contains(keyword)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,21 @@
+package scoring;
+
+/** The likelihood of fraud assigned by a {@link PreScorer} and why. */
+public final class PreScore {
+
+  private final double likelihood;
+  private final String reason;
+
+  public PreScore(double likelihood, String reason) {
+    this.likelihood = likelihood;
+    this.reason = reason;
+  }
+
+  public double likelihood() {
+    return likelihood;
+  }
+
+  public String reason() {
+    return reason;
+  }
+}
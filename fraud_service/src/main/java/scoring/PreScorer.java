@@ -0,0 +1,16 @@
+package scoring;
+
+import com.google.gson.JsonObject;
+
+import features.CardFeatures;
+
+/**
+ * A cheap, local scoring stage that runs before the model. Implementations
+ * are called once per transaction, in order for each card, with the card's
+ * features from before the transaction.
+ */
+public interface PreScorer {
+
+  /** Scores the transaction against what is known about its card. */
+  PreScore score(JsonObject transaction, CardFeatures features);
+}
@@ -0,0 +1,98 @@
+package scoring;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import config.Config;
+import features.CardFeatures;
+
+/**
+ * Scores transactions with the indicators listed in the agent's instructions:
+ * the card's IP address moving to a different country (or, for transactions
+ * not enriched with ip_country, a different network), a small charity
+ * payment followed by a large payment elsewhere, and unusually large amounts,
+ * as well as a burst of transactions in the card's feature window.
+ * Each indicator that fires adds its weight to the score.
+ */
+public class RuleBasedPreScorer implements PreScorer {
+
+  private static final double LARGE_AMOUNT = Config.getDouble("PRESCORE_LARGE_AMOUNT", 1000.0);
+  private static final double OUTLIER_RATIO = Config.getDouble("PRESCORE_OUTLIER_RATIO", 3.0);
+  private static final int OUTLIER_MIN_HISTORY = Config.getInt("PRESCORE_OUTLIER_MIN_HISTORY", 5);
+  private static final double SMALL_CHARITY_AMOUNT = Config.getDouble("PRESCORE_SMALL_CHARITY_AMOUNT", 20.0);
+  private static final int BURST_COUNT = Config.getInt("PRESCORE_BURST_COUNT", 10);
+
+  private static final double LARGE_AMOUNT_WEIGHT = 0.6;
+  private static final double CHARITY_THEN_LARGE_WEIGHT = 0.6;
+  private static final double IP_CHANGE_WEIGHT = 0.3;
+  private static final double OUTLIER_WEIGHT = 0.3;
+  private static final double BURST_WEIGHT = 0.3;
+
+  @Override
+  public PreScore score(JsonObject transaction, CardFeatures features) {
+    double amount = getDouble(transaction, "amount");
+    String ip = getString(transaction, "ip_address");
+    String receiver = getString(transaction, "receiver");
+    String country = getString(transaction, "ip_country");
+
+    double score = 0.0;
+    List<String> reasons = new ArrayList<>();
+    if (amount >= LARGE_AMOUNT) {
+      score += LARGE_AMOUNT_WEIGHT;
+      reasons.add(String.format("unusually large amount $%.2f", amount));
+    }
+    if (features.count() > 0) {
+      if (features.count() >= OUTLIER_MIN_HISTORY && amount > OUTLIER_RATIO * features.meanAmount()) {
+        score += OUTLIER_WEIGHT;
+        reasons.add(String.format("amount is %.1fx the card's average", amount / features.meanAmount()));
+      }
+      if (country != null && features.lastCountry() != null) {
+        if (!country.equals(features.lastCountry())) {
+          score += IP_CHANGE_WEIGHT;
+          reasons.add("IP address moved from " + features.lastCountry() + " to " + country);
+        }
+      } else if (ip != null && features.lastIp() != null && !sameNetwork(ip, features.lastIp())) {
+        score += IP_CHANGE_WEIGHT;
+        reasons.add("IP address moved from " + features.lastIp() + " to " + ip);
+      }
+      if (features.lastWasCharity() && features.lastAmount() <= SMALL_CHARITY_AMOUNT
+          && amount >= LARGE_AMOUNT && !Charities.isCharity(receiver)) {
+        score += CHARITY_THEN_LARGE_WEIGHT;
+        reasons.add("large payment right after a small charity payment");
+      }
+      if (features.windowCount() + 1 >= BURST_COUNT) {
+        score += BURST_WEIGHT;
+        reasons.add((features.windowCount() + 1) + " transactions in the card's recent window");
+      }
+    }
+
+    if (reasons.isEmpty()) {
+      return new PreScore(0.0, "No fraud indicators: amount and IP address consistent with card history");
+    }
+    return new PreScore(Math.min(1.0, score), String.join("; ", reasons));
+  }
+
+  /** Treats addresses that share their first two octets as the same network. */
+  private static boolean sameNetwork(String ip, String otherIp) {
+    int end = secondDot(ip);
+    return end > 0 && end == secondDot(otherIp) && ip.regionMatches(0, otherIp, 0, end);
+  }
+
+  private static int secondDot(String ip) {
+    int first = ip.indexOf('.');
+    return first < 0 ? -1 : ip.indexOf('.', first + 1);
+  }
+
+  private static double getDouble(JsonObject transaction, String field) {
+    JsonElement element = transaction.get(field);
+    return element == null || element.isJsonNull() ? 0.0 : element.getAsDouble();
+  }
+
+  private static String getString(JsonObject transaction, String field) {
+    JsonElement element = transaction.get(field);
+    return element == null || element.isJsonNull() ? null : element.getAsString();
+  }
+}
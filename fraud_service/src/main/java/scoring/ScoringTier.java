@@ -0,0 +1,47 @@
+package scoring;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import features.CardFeatures;
+
+/**
+ * One tier of the scoring cascade in front of the fraud agent. Every
+ * transaction is scored by the first tier; one whose score falls inside the
+ * uncertainty band is passed to the next tier, and one still uncertain after
+ * the last goes to the agent. Cheap tiers, such as local rules or a small
+ * model, thus answer most transactions and the agent sees only the rest.
+ *
+ * <p>Tiers are called in each card's lane, in order, with the card's features
+ * from before the transaction. A tier that fails or cannot answer by the
+ * deadline escalates the transaction.
+ */
+public interface ScoringTier {
+
+  /** Names the tier in metrics and in the reasons passed on to later tiers. */
+  String name();
+
+  /**
+   * Scores the transaction.
+   *
+   * @param deadlineNanos System.nanoTime() by which the transaction must be answered
+   */
+  CompletionStage<PreScore> score(JsonObject transaction, CardFeatures features, long deadlineNanos);
+
+  /** Returns a tier that answers at once with the pre-scorer's score. */
+  static ScoringTier local(String name, PreScorer preScorer) {
+    return new ScoringTier() {
+      @Override
+      public String name() {
+        return name;
+      }
+
+      @Override
+      public CompletionStage<PreScore> score(JsonObject transaction, CardFeatures features, long deadlineNanos) {
+        return CompletableFuture.completedFuture(preScorer.score(transaction, features));
+      }
+    };
+  }
+}
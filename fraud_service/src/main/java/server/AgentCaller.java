@@ -1,47 +1,503 @@
 package server;
 
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
-import com.google.adk.agents.LlmAgent;
-import com.google.adk.agents.SequentialAgent;
+import com.google.adk.artifacts.InMemoryArtifactService;
 import com.google.adk.events.Event;
-import com.google.adk.sessions.BaseSessionService;
 import com.google.adk.sessions.Session;
-import com.google.adk.runner.InMemoryRunner;
-import com.google.adk.sessions.Session;
-import com.google.adk.sessions.GetSessionConfig;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.adk.runner.Runner;
 import com.google.genai.types.Content;
 import com.google.genai.types.Part;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import io.reactivex.rxjava3.core.Maybe;
-import java.util.Optional;
+
+import io.reactivex.rxjava3.core.Single;
 
 import agents.fraudagent.FraudAgent;
-import io.reactivex.rxjava3.core.Flowable;
+import config.Config;
+import features.CardFeatures;
+import features.FeatureStore;
+import geo.GeoIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scoring.CardSummary;
+import scoring.PreScore;
+import scoring.PreScorer;
+import scoring.RuleBasedPreScorer;
+import scoring.ScoringTier;
 
 public class AgentCaller {
   private static final String APP_NAME = "FraudDetector";
+  // Transactions a tier scores inside this band are escalated to the next
+  // tier or, after the last, to the agent; the others are answered.
+  private static final double ESCALATE_FROM =
+      Config.getDouble("CASCADE_ESCALATE_FROM", Config.getDouble("PRESCORE_BYPASS_BELOW", 0.2));
+  private static final double ESCALATE_TO = Config.getDouble("CASCADE_ESCALATE_TO", 1.0);
+  private static final long PRESCORE_REPORT_INTERVAL = Config.getLong("PRESCORE_REPORT_INTERVAL", 1000);
+  // Each transaction is answered within this long of arriving, by the model
+  // if it can be, otherwise with a degraded local score.
+  private static final long SCORING_DEADLINE_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Config.getLong("SCORING_DEADLINE_MS", 10_000));
+  // Scores degraded answers when there is no pre-scorer to reuse.
+  private static final PreScorer FALLBACK_SCORER = new RuleBasedPreScorer();
+  private static final Logger logger = LoggerFactory.getLogger(AgentCaller.class);
+  private static final RateLimitedLogger tierFailureLog = new RateLimitedLogger(logger, 1, TimeUnit.SECONDS);
 
-  private InMemoryRunner runner;
+  private Runner runner;
+  private final BoundedSessionService sessionService = BoundedSessionService.fromConfig();
+  // Requests for the same card must run one at a time: each run works on a
+  // copy of the card's session and writes it back, so overlapping runs would
+  // interleave or drop history. Different cards can proceed in parallel.
+  private final CardScheduler scheduler;
+  // Cheaper scorers tried in order before the agent.
+  private final List<ScoringTier> tiers;
+  private final List<TierStats> tierStats = new ArrayList<>();
+  private final TierStats agentStats = new TierStats("agent");
+  private final AtomicLong preScored = new AtomicLong();
+  private final AtomicLong bypassed = new AtomicLong();
+  private final AtomicLong degraded = new AtomicLong();
+  private final ModelGuard modelGuard = new ModelGuard(CircuitBreaker.fromConfig());
+  // Rolling per-card aggregates for the pre-scorer and the card summary.
+  private final FeatureStore features = FeatureStore.fromConfig();
+  // With context compaction each transaction is scored in a fresh session and
+  // the card's past is described by its summary instead of the raw history.
+  private final boolean compactContext;
+  private final int summaryRecent;
+  private final int summaryNetworks;
+  private final Cache<String, CardSummary> summaries;
+  // Gathers transactions bound for the model into one call per batch.
+  private final boolean batchRequests;
+  private final MicroBatcher<PreparedTransaction, String> batcher;
+  // Adds the country of the transaction's IP address, if GEOIP_CSV is set.
+  private final GeoIndex geoIndex = GeoIndex.fromConfig();
+  // Bounds the transactions being scored at once; the rest wait their turn.
+  private final ConcurrencyLimit inFlight;
+  // Answers redelivered transactions without scoring them again.
+  private final VerdictCache verdicts = VerdictCache.fromConfig();
 
-  public AgentCaller() {
-    runner = new InMemoryRunner(FraudAgent.ROOT_AGENT, APP_NAME);
+  public AgentCaller(Executor executor) {
+    this(executor, tiersFromConfig());
+  }
+
+  /** Uses the given pre-scorer in front of the model, or none if it is null. */
+  public AgentCaller(Executor executor, PreScorer preScorer) {
+    this(executor, preScorer == null ? List.of() : List.of(ScoringTier.local("rules", preScorer)));
+  }
+
+  /** Scores at most maxConcurrent transactions at a time. */
+  public AgentCaller(Executor executor, int maxConcurrent) {
+    this(executor, tiersFromConfig(), maxConcurrent);
+  }
+
+  /** Scores transactions with the given tiers, in order, before the model. */
+  public AgentCaller(Executor executor, List<ScoringTier> tiers) {
+    this(executor, tiers, Config.getInt("MAX_CONCURRENT_REQUESTS", 64));
+  }
+
+  /**
+   * Scores transactions with the given tiers, in order, before the model, at
+   * most maxConcurrent of them at a time.
+   */
+  public AgentCaller(Executor executor, List<ScoringTier> tiers, int maxConcurrent) {
+    runner = new Runner(FraudAgent.ROOT_AGENT, APP_NAME, new InMemoryArtifactService(), sessionService);
+    scheduler = new CardScheduler(executor);
+    inFlight = new ConcurrencyLimit(maxConcurrent, executor);
+    this.tiers = List.copyOf(tiers);
+    for (ScoringTier tier : this.tiers) {
+      tierStats.add(new TierStats(tier.name()));
+    }
+    tierStats.add(agentStats);
+    compactContext = Config.getBoolean("CONTEXT_COMPACTION", true);
+    summaryRecent = Config.getInt("SUMMARY_RECENT_TRANSACTIONS", 5);
+    summaryNetworks = Config.getInt("SUMMARY_IP_NETWORKS", 8);
+    summaries = CacheBuilder.newBuilder()
+        .maximumSize(Config.getLong("SUMMARY_MAX_CARDS", 1_000_000))
+        .expireAfterAccess(Config.getLong("SUMMARY_IDLE_MINUTES", 24 * 60), TimeUnit.MINUTES)
+        .build();
+    batchRequests = compactContext && Config.getBoolean("MODEL_BATCHING", false);
+    ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "batch-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    Runner batchRunner = new Runner(FraudAgent.BATCH_AGENT, APP_NAME, new InMemoryArtifactService(), sessionService);
+    batcher = new MicroBatcher<>(Config.getInt("BATCH_MAX_SIZE", 20), Config.getLong("BATCH_WINDOW_MS", 50),
+        batchTimer, executor, new BatchScorer(batchRunner, sessionService, modelGuard, this::scoreWithModel, this::degrade));
+  }
+
+  /**
+   * Returns the rule-based tier unless PRESCORE_ENABLED is false, followed by
+   * a model tier if CASCADE_MODEL names a cheaper model.
+   */
+  private static List<ScoringTier> tiersFromConfig() {
+    List<ScoringTier> tiers = new ArrayList<>();
+    if (Config.getBoolean("PRESCORE_ENABLED", true)) {
+      tiers.add(ScoringTier.local("rules", new RuleBasedPreScorer()));
+    }
+    String cascadeModel = Config.getString("CASCADE_MODEL", null);
+    if (cascadeModel != null) {
+      tiers.add(new ModelTier("triage", FraudAgent.initTriageAgent(cascadeModel),
+          new ModelGuard(CircuitBreaker.fromConfig()), Config.getLong("CASCADE_MODEL_TIMEOUT_MS", 2000),
+          FeatureStore.windowMinutesFromConfig()));
+    }
+    return tiers;
+  }
+
+  /**
+   * Scores the transaction on the given executor once all earlier
+   * transactions for the same card have been scored and fewer than the
+   * concurrency limit are being scored. Fails with an
+   * IllegalArgumentException if the message is not a transaction. No thread
+   * waits while the model is working: the returned future completes from
+   * whichever thread delivers the model's answer.
+   */
+  public CompletableFuture<String> submitRequest(String message) {
+    return submitRequest(message, null);
+  }
+
+  /**
+   * Scores the transaction as {@link #submitRequest(String)} does. A
+   * transaction seen recently, with the same message id if one is given, is
+   * answered as it was before rather than scored again.
+   *
+   * @param messageId the Pub/Sub message id of the transaction, or null
+   */
+  public CompletableFuture<String> submitRequest(String message, String messageId) {
+    return submit(message, messageId, batchRequests);
+  }
+
+  /**
+   * Scores the transaction as part of a batch with others sent around the
+   * same time. The card's state is still updated in arrival order, but the
+   * model call is shared. Without context compaction every transaction needs
+   * the card's session to itself, so this is the same as submitRequest.
+   */
+  public CompletableFuture<String> submitBatched(String message) {
+    return submit(message, null, compactContext);
+  }
+
+  private CompletableFuture<String> submit(String message, String messageId, boolean batched) {
+    long deadline = System.nanoTime() + SCORING_DEADLINE_NANOS;
+    JsonObject jsonObject;
+    String ccNumber;
+    try {
+      jsonObject = parse(message);
+      ccNumber = jsonObject.get("credit_card_number").getAsString();
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    long queued = System.nanoTime();
+    // The concurrency permit is taken in the card's lane, so transactions
+    // waiting behind their card's earlier ones do not hold one.
+    return verdicts.get(messageId, jsonObject, () -> {
+      if (!batched) {
+        return scheduler.submitAsync(ccNumber, () -> inFlight.submit(() -> {
+          Metrics.QUEUE.recordSince(queued);
+          return runForCard(ccNumber, jsonObject, deadline);
+        }));
+      }
+      // The card's next transaction may be prepared as soon as this one is,
+      // but the permit is held until this one is answered.
+      return scheduler.submitAsync(ccNumber, () -> {
+            CompletableFuture<Void> prepared = new CompletableFuture<>();
+            CompletableFuture<String> answer = inFlight.submit(() -> {
+              Metrics.QUEUE.recordSince(queued);
+              CompletableFuture<PreparedTransaction> preparing = prepare(ccNumber, jsonObject, deadline);
+              preparing.whenComplete((transaction, error) -> prepared.complete(null));
+              return preparing.thenCompose(transaction -> transaction.result != null
+                  ? CompletableFuture.completedFuture(transaction.result)
+                  : recordAgent(transaction, System.nanoTime(), batcher.add(transaction)));
+            });
+            answer.whenComplete((result, error) -> prepared.complete(null));
+            return prepared.thenApply(ignored -> answer);
+          })
+          .thenCompose(answer -> answer);
+    });
   }
 
   public String executeRequest(String message) {
-    JsonObject jsonObject = JsonParser.parseString(message).getAsJsonObject();
-    String ccNumber = jsonObject.get("credit_card_number").getAsString();
-    BaseSessionService sessionService = runner.sessionService();
-    Session session = sessionService.getSession(APP_NAME, ccNumber, ccNumber, Optional.empty()).blockingGet();
-    if (session == null) {
-      session = sessionService.createSession(APP_NAME, ccNumber, null, ccNumber).blockingGet();
-    }
-    Content userMessage = Content.fromParts(Part.fromText(message));
-    Flowable<Event> eventStream = runner.runAsync(ccNumber, session.id(), userMessage);
-    Event event = eventStream.blockingLast();
-    return event.stringifyContent();
+    return submitRequest(message).join();
+  }
+
+  public BoundedSessionService sessionService() {
+    return sessionService;
+  }
+
+  /** Returns how many transactions have been through the cascade so far. */
+  public long preScoredCount() {
+    return preScored.get();
+  }
+
+  /** Returns how many of them the cascade answered without the agent. */
+  public long bypassedCount() {
+    return bypassed.get();
+  }
+
+  /** Returns how many transactions got a degraded local score because the model could not be used. */
+  public long degradedCount() {
+    return degraded.get();
+  }
+
+  VerdictCache verdictCache() {
+    return verdicts;
+  }
+
+  ModelGuard modelGuard() {
+    return modelGuard;
+  }
+
+  /** Returns the stats of each cascade tier, ending with the agent's. */
+  List<TierStats> tierStats() {
+    return tierStats;
+  }
+
+  /** Returns how many cards the feature store holds. */
+  public long featureCardCount() {
+    return features.size();
+  }
+
+  /** Returns how many cards had their features restored from the snapshot. */
+  public long featureRestoredCount() {
+    return features.restoredCount();
+  }
+
+  /** Snapshots the per-card features, if FEATURE_SNAPSHOT_PATH is set. Call before the process exits. */
+  public void saveState() {
+    try {
+      features.snapshot();
+    } catch (IOException e) {
+      logger.warn("Could not snapshot features", e);
+    }
+  }
+
+  private static JsonObject parse(String message) {
+    long start = System.nanoTime();
+    try {
+      JsonObject jsonObject = JsonParser.parseString(message).getAsJsonObject();
+      jsonObject.get("credit_card_number").getAsString();
+      return jsonObject;
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Malformed transaction: " + e.getMessage(), e);
+    } finally {
+      Metrics.PARSE.recordSince(start);
+    }
+  }
+
+  private CompletableFuture<String> runForCard(String ccNumber, JsonObject transaction, long deadline) {
+    return prepare(ccNumber, transaction, deadline).thenCompose(prepared -> prepared.result != null
+        ? CompletableFuture.completedFuture(prepared.result)
+        : recordAgent(prepared, System.nanoTime(), scoreWithModel(prepared)));
+  }
+
+  /**
+   * Records, once the transaction is answered, whether the agent scored it
+   * or it failed or was degraded.
+   */
+  private CompletableFuture<String> recordAgent(PreparedTransaction prepared, long start,
+      CompletableFuture<String> answer) {
+    return answer.whenComplete((result, error) -> {
+      if (error != null || prepared.degraded) {
+        agentStats.recordFailed(start);
+      } else {
+        agentStats.recordScored(start, false);
+      }
+    });
+  }
+
+  /** Scores the transaction with the model, or degraded if the model cannot answer in time. */
+  private CompletableFuture<String> scoreWithModel(PreparedTransaction prepared) {
+    CompletableFuture<String> scored = compactContext
+        ? runInFreshSession(prepared)
+        : runInSession(prepared, prepared.card);
+    return scored.handle((result, error) -> {
+      if (error == null) {
+        return result;
+      }
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (cause instanceof ModelUnavailableException) {
+        return degrade(prepared, cause.getMessage());
+      }
+      throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+    });
+  }
+
+  /**
+   * Answers with the local rules' score, its reason marked as degraded. Used
+   * when the model fails, is too slow or is shut off by the circuit breaker.
+   */
+  private String degrade(PreparedTransaction prepared, String why) {
+    degraded.incrementAndGet();
+    prepared.degraded = true;
+    PreScore local = prepared.preScore != null
+        ? prepared.preScore
+        : FALLBACK_SCORER.score(prepared.transaction, prepared.features);
+    // If the agent published the record before the deadline, publishing it
+    // again would leave two scores for one transaction.
+    return scoreLocally(prepared.transaction,
+        new PreScore(local.likelihood(), "[degraded: " + why + "] " + local.reason()), !prepared.published);
+  }
+
+  /**
+   * Consults and updates the card's local state for the transaction and, if
+   * a cascade tier is confident, answers it. Must run in the card's lane,
+   * which stays busy until the returned future completes.
+   */
+  private CompletableFuture<PreparedTransaction> prepare(String ccNumber, JsonObject transaction, long deadline) {
+    enrich(transaction);
+    CardFeatures cardFeatures = features.record(ccNumber, transaction);
+    String cardHistory = null;
+    if (compactContext) {
+      CardSummary summary =
+          summaries.asMap().computeIfAbsent(ccNumber, card -> new CardSummary(summaryRecent, summaryNetworks));
+      if (cardFeatures.count() > 0) {
+        cardHistory = summary.render(cardFeatures, features.windowMinutes());
+      }
+      summary.record(transaction);
+    }
+    if (tiers.isEmpty()) {
+      return CompletableFuture.completedFuture(
+          PreparedTransaction.forModel(ccNumber, transaction, cardHistory, cardFeatures, null, null, deadline));
+    }
+    String history = cardHistory;
+    List<PreScore> escalated = new ArrayList<>(tiers.size());
+    return cascade(0, transaction, cardFeatures, deadline, escalated).thenApply(answer -> {
+      countPreScore(answer != null);
+      if (answer != null) {
+        return PreparedTransaction.answered(ccNumber, transaction, scoreLocally(transaction, answer, true));
+      }
+      // The model does not see answered transactions, so the prompt passes on
+      // what the tiers found in the card's full history.
+      PreScore last = escalated.isEmpty() ? null : escalated.get(escalated.size() - 1);
+      String preScreening = escalated.isEmpty() ? null
+          : escalated.stream().map(PreScore::reason).collect(Collectors.joining("; "));
+      return PreparedTransaction.forModel(ccNumber, transaction, history, cardFeatures, last, preScreening, deadline);
+    });
+  }
+
+  /**
+   * Scores the transaction with the tiers from the given one on. Completes
+   * with the score of the first tier that is confident, or with null if all
+   * of them escalate it, in which case escalated holds their scores.
+   */
+  private CompletableFuture<PreScore> cascade(int index, JsonObject transaction, CardFeatures cardFeatures,
+      long deadline, List<PreScore> escalated) {
+    if (index == tiers.size()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    ScoringTier tier = tiers.get(index);
+    TierStats stats = tierStats.get(index);
+    long start = System.nanoTime();
+    CompletableFuture<PreScore> scored;
+    try {
+      scored = tier.score(transaction, cardFeatures, deadline).toCompletableFuture();
+    } catch (RuntimeException e) {
+      scored = CompletableFuture.failedFuture(e);
+    }
+    return scored.handle((score, error) -> {
+      if (error != null) {
+        stats.recordFailed(start);
+        tierFailureLog.warn("Scoring tier {} failed, escalating", tier.name(), error);
+        return null;
+      }
+      boolean escalate = score.likelihood() >= ESCALATE_FROM && score.likelihood() <= ESCALATE_TO;
+      stats.recordScored(start, escalate);
+      if (!escalate) {
+        return score;
+      }
+      // With several tiers, the agent is told which found what.
+      escalated.add(tiers.size() == 1 ? score : new PreScore(score.likelihood(), tier.name() + ": " + score.reason()));
+      return null;
+    }).thenCompose(answer -> answer != null
+        ? CompletableFuture.completedFuture(answer)
+        : cascade(index + 1, transaction, cardFeatures, deadline, escalated));
+  }
+
+  /** Adds ip_country to the transaction if its IP address is in the geo index. */
+  private void enrich(JsonObject transaction) {
+    if (geoIndex == null) {
+      return;
+    }
+    JsonElement ip = transaction.get("ip_address");
+    String country = ip == null || !ip.isJsonPrimitive() ? null : geoIndex.country(ip.getAsString());
+    if (country != null) {
+      transaction.addProperty("ip_country", country);
+    }
+  }
+
+  /** Scores the transaction on its own in a throwaway session. */
+  private CompletableFuture<String> runInFreshSession(PreparedTransaction prepared) {
+    long start = System.nanoTime();
+    return sessionService.createSession(APP_NAME, prepared.card, null, null)
+        .toCompletionStage()
+        .thenCompose(session -> {
+          Metrics.SESSION.recordSince(start);
+          return runInSession(prepared, session)
+              .whenComplete((result, error) -> sessionService.deleteSession(APP_NAME, prepared.card, session.id())
+                  .subscribe(() -> {}, deleteError -> logger.warn("Could not delete session", deleteError)));
+        })
+        .toCompletableFuture();
+  }
+
+  /**
+   * Runs the agent on the message in the given session, creating it if
+   * needed. Fails with ModelUnavailableException if it cannot finish by the
+   * deadline.
+   */
+  private CompletableFuture<String> runInSession(PreparedTransaction prepared, String sessionId) {
+    long start = System.nanoTime();
+    return sessionService.getSession(APP_NAME, prepared.card, sessionId, Optional.empty())
+        .switchIfEmpty(Single.defer(() -> sessionService.createSession(APP_NAME, prepared.card, null, sessionId)))
+        .toCompletionStage()
+        .thenCompose(session -> {
+          Metrics.SESSION.recordSince(start);
+          return runInSession(prepared, session);
+        })
+        .toCompletableFuture();
+  }
+
+  /** Runs the agent on the transaction's prompt, noting if its publish tool ran. */
+  private CompletableFuture<String> runInSession(PreparedTransaction prepared, Session session) {
+    Content userMessage = Content.fromParts(Part.fromText(prepared.prompt()));
+    return modelGuard.run(prepared.deadlineNanos, () -> runner.runAsync(prepared.card, session.id(), userMessage)
+            .doOnNext(event -> {
+              if (event.functionResponses().stream()
+                  .anyMatch(response -> FraudAgent.PUBLISH_TOOL.equals(response.name().orElse(null)))) {
+                prepared.published = true;
+              }
+            }))
+        .thenApply(Event::stringifyContent);
+  }
+
+  private String scoreLocally(JsonObject transaction, PreScore preScore, boolean publish) {
+    JsonObject augmented = transaction.deepCopy();
+    augmented.addProperty("fraud_likelihood", preScore.likelihood());
+    augmented.addProperty("fraud_reason", preScore.reason());
+    if (publish) {
+      FraudAgent.publishScored(augmented);
+    }
+    return augmented.toString();
+  }
+
+  private void countPreScore(boolean bypass) {
+    long total = preScored.incrementAndGet();
+    long skipped = bypass ? bypassed.incrementAndGet() : bypassed.get();
+    if (total % PRESCORE_REPORT_INTERVAL == 0) {
+      logger.info("Pre-scoring answered {} of {} transactions without the model ({}%)",
+          skipped, total, String.format("%.1f", 100.0 * skipped / total));
+    }
   }
 }
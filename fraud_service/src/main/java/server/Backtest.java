@@ -0,0 +1,453 @@
+package server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import config.Config;
+
+/**
+ * Scores a file of newline-delimited JSON transactions offline, through the
+ * same cascade and model as the service, and reports throughput and, if the
+ * file was generated with --label-fraud, the precision and recall of the
+ * scores against the injected fraud.
+ *
+ * <p>The file is memory-mapped, not read into the heap. One parallel pass
+ * splits its lines into partitions by card number, keeping only their
+ * offsets. The partitions are then scored in parallel, each card's
+ * transactions in file order, and the scored transactions are appended to
+ * the output as they complete, each with its label. Nothing is published,
+ * no feature snapshot is read or written and repeated lines are scored
+ * again. It exits with status 1 if a partition could not be scored to the
+ * end.
+ *
+ * <p>Usage: java -cp FraudAgent.jar server.Backtest --input tx.ndjson
+ * [--output scored.ndjson] [--partitions 8] [--in-flight 256] [--threshold 0.5]
+ */
+public class Backtest {
+    private static final String LABEL = "injected_fraud";
+    private static final byte[] CARD_KEY = "\"credit_card_number\"".getBytes(StandardCharsets.US_ASCII);
+    // Files are mapped in regions of at most this size, split at line ends.
+    private static final long REGION_BYTES = 1L << 30;
+    // Lines are split into partitions in chunks of about this size.
+    private static final int CHUNK_BYTES = 16 << 20;
+    private static final int OUTPUT_BUFFER_BYTES = 256 * 1024;
+
+    private final AgentCaller agentCaller;
+    private final Semaphore inFlight;
+    private final double threshold;
+    private final FileChannel output;
+
+    private final LongAdder scored = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder truePositives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    private final LongAdder falseNegatives = new LongAdder();
+    private final LongAdder trueNegatives = new LongAdder();
+
+    private Backtest(AgentCaller agentCaller, int maxInFlight, double threshold, FileChannel output) {
+        this.agentCaller = agentCaller;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.threshold = threshold;
+        this.output = output;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String input = options.get("input");
+        if (input == null) {
+            System.err.println("Usage: server.Backtest --input tx.ndjson [--output scored.ndjson]"
+                    + " [--partitions N] [--in-flight N] [--threshold 0.5]");
+            System.exit(2);
+        }
+        int partitions = Integer.parseInt(options.getOrDefault("partitions",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int maxInFlight = Integer.parseInt(options.getOrDefault("in-flight",
+                String.valueOf(Config.getInt("MAX_CONCURRENT_REQUESTS", 64) + Config.getInt("MAX_QUEUED_REQUESTS", 256))));
+        double threshold = Double.parseDouble(options.getOrDefault("threshold", "0.5"));
+        // Must be set before the agent is first loaded. A blank setting counts
+        // as unset, whatever the environment says.
+        System.setProperty("TRANSACTIONS_TOPIC", "");
+        System.setProperty("COMPROMISED_CARDS_TOPIC", "");
+        System.setProperty("FEATURE_SNAPSHOT_PATH", "");
+        // A line that repeats an earlier one is scored again, not answered from the cache.
+        System.setProperty("VERDICT_CACHE_SIZE", "0");
+
+        boolean complete;
+        try (FileChannel channel = FileChannel.open(Path.of(input), StandardOpenOption.READ);
+                FileChannel out = options.containsKey("output")
+                        ? FileChannel.open(Path.of(options.get("output")), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                        : null) {
+            long start = System.nanoTime();
+            List<ByteBuffer> regions = map(channel);
+            long[][] lines = partition(regions, partitions);
+            long total = Arrays.stream(lines).mapToLong(partition -> partition.length).sum();
+            System.out.printf("Split %d transactions into %d partitions in %d ms%n", total, partitions,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            ExecutorService workers = Executors.newFixedThreadPool(
+                    Config.getInt("WORKER_THREADS", Runtime.getRuntime().availableProcessors()));
+            Backtest backtest = new Backtest(new AgentCaller(workers, maxInFlight), maxInFlight, threshold, out);
+            complete = backtest.run(regions, lines, total);
+        }
+        System.exit(complete ? 0 : 1);
+    }
+
+    /**
+     * Scores every partition on its own thread and reports progress until all
+     * are done. Returns false if a partition could not be scored to the end.
+     */
+    private boolean run(List<ByteBuffer> regions, long[][] lines, long total) throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        Queue<String> partitionFailures = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < lines.length; i++) {
+            long[] partition = lines[i];
+            String name = "partition-" + i;
+            Thread thread = new Thread(() -> {
+                try {
+                    score(regions, partition);
+                } catch (RuntimeException e) {
+                    partitionFailures.add(name + ": " + e);
+                }
+            }, name);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+        long reportInterval = TimeUnit.SECONDS.toNanos(5);
+        long lastCount = 0;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                thread.join(TimeUnit.NANOSECONDS.toMillis(reportInterval));
+                if (!thread.isAlive()) {
+                    break;
+                }
+                long count = scored.sum() + failed.sum();
+                System.out.printf("Scored %d of %d (%.0f/s)%n", count, total,
+                        (count - lastCount) / (reportInterval / 1e9));
+                lastCount = count;
+            }
+        }
+        report(System.nanoTime() - start);
+        for (String failure : partitionFailures) {
+            System.err.println("Stopped scoring " + failure);
+        }
+        return partitionFailures.isEmpty();
+    }
+
+    /**
+     * Submits the partition's transactions in order, with at most the
+     * in-flight limit outstanding across partitions, and writes out each
+     * result once those before it in the partition are written.
+     */
+    private void score(List<ByteBuffer> regions, long[] partition) {
+        ArrayDeque<Pending> pending = new ArrayDeque<>();
+        ByteBuffer buffer = ByteBuffer.allocate(OUTPUT_BUFFER_BYTES);
+        try {
+            for (long line : partition) {
+                String transaction = readLine(regions, line);
+                Boolean label = null;
+                if (transaction.contains(LABEL)) {
+                    // The model must not see the answer. A line that does not
+                    // parse is passed on as it is, to fail as in the service.
+                    try {
+                        JsonObject object = JsonParser.parseString(transaction).getAsJsonObject();
+                        JsonElement labelled = object.remove(LABEL);
+                        label = labelled.getAsBoolean();
+                        transaction = object.toString();
+                    } catch (RuntimeException e) {
+                        label = null;
+                    }
+                }
+                inFlight.acquireUninterruptibly();
+                CompletableFuture<String> result = agentCaller.submitRequest(transaction)
+                        .whenComplete((ignored, error) -> inFlight.release());
+                pending.add(new Pending(result, label));
+                while (!pending.isEmpty() && pending.peek().result.isDone()) {
+                    write(pending.poll(), buffer);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(pending.poll(), buffer);
+            }
+            flush(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Waits for the transaction's result, counts it and buffers it for the output. */
+    private void write(Pending pending, ByteBuffer buffer) throws IOException {
+        String line;
+        try {
+            JsonObject result = JsonParser.parseString(pending.result.join()).getAsJsonObject();
+            scored.increment();
+            if (pending.label != null) {
+                boolean flagged = result.get("fraud_likelihood").getAsDouble() >= threshold;
+                (flagged ? pending.label ? truePositives : falsePositives
+                        : pending.label ? falseNegatives : trueNegatives).increment();
+                result.addProperty(LABEL, pending.label);
+            }
+            line = result.toString();
+        } catch (CompletionException | IllegalStateException | JsonParseException e) {
+            failed.increment();
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            JsonObject error = new JsonObject();
+            error.addProperty("error", String.valueOf(cause.getMessage()));
+            line = error.toString();
+        }
+        if (output == null) {
+            return;
+        }
+        byte[] bytes = (line + '\n').getBytes(StandardCharsets.UTF_8);
+        if (buffer.remaining() < bytes.length) {
+            flush(buffer);
+        }
+        if (buffer.remaining() < bytes.length) {
+            // Longer than the buffer; write it directly.
+            ByteBuffer whole = ByteBuffer.wrap(bytes);
+            synchronized (output) {
+                while (whole.hasRemaining()) {
+                    output.write(whole);
+                }
+            }
+            return;
+        }
+        buffer.put(bytes);
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        if (output == null) {
+            return;
+        }
+        buffer.flip();
+        synchronized (output) {
+            while (buffer.hasRemaining()) {
+                output.write(buffer);
+            }
+        }
+        buffer.clear();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long count = scored.sum();
+        System.out.printf("Scored %d transactions in %.1fs (%.0f/s), %d failed%n", count, seconds, count / seconds,
+                failed.sum());
+        long cascaded = agentCaller.preScoredCount();
+        if (cascaded > 0) {
+            System.out.printf("Answered without the agent: %d of %d (%.1f%%)%n", agentCaller.bypassedCount(),
+                    cascaded, 100.0 * agentCaller.bypassedCount() / cascaded);
+        }
+        System.out.printf("Degraded answers: %d%n", agentCaller.degradedCount());
+        long tp = truePositives.sum();
+        long fp = falsePositives.sum();
+        long fn = falseNegatives.sum();
+        long tn = trueNegatives.sum();
+        if (tp + fp + fn + tn == 0) {
+            System.out.println("No transactions were labelled " + LABEL + "; precision and recall not computed.");
+            return;
+        }
+        System.out.printf("At fraud_likelihood >= %s: %d true positives, %d false positives, %d false negatives,"
+                + " %d true negatives%n", threshold, tp, fp, fn, tn);
+        System.out.printf("Precision %.3f, recall %.3f%n",
+                tp + fp == 0 ? 0.0 : (double) tp / (tp + fp), tp + fn == 0 ? 0.0 : (double) tp / (tp + fn));
+    }
+
+    /** Maps the file in regions that each end at a line end or the end of the file. */
+    static List<ByteBuffer> map(FileChannel channel) throws IOException {
+        List<ByteBuffer> regions = new ArrayList<>();
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            long length = Math.min(REGION_BYTES, size - position);
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (position + length < size) {
+                // Cut after the last line end; the rest starts the next region.
+                int end = (int) length;
+                while (end > 0 && region.get(end - 1) != '\n') {
+                    end--;
+                }
+                if (end == 0) {
+                    throw new IOException("Line longer than " + REGION_BYTES + " bytes at offset " + position);
+                }
+                region = region.slice(0, end);
+                length = end;
+            }
+            regions.add(region);
+            position += length;
+        }
+        return regions;
+    }
+
+    /**
+     * Returns, for each partition, the offsets of its lines in file order. An
+     * offset is the region's index in the high half and the line's start in
+     * the low half. A card's lines all go to the same partition.
+     */
+    static long[][] partition(List<ByteBuffer> regions, int partitions) {
+        List<long[]> chunks = new ArrayList<>();
+        for (int region = 0; region < regions.size(); region++) {
+            ByteBuffer buffer = regions.get(region);
+            int start = 0;
+            while (start < buffer.limit()) {
+                int end = Math.min(buffer.limit(), start + CHUNK_BYTES);
+                while (end < buffer.limit() && buffer.get(end - 1) != '\n') {
+                    end++;
+                }
+                chunks.add(new long[] {region, start, end});
+                start = end;
+            }
+        }
+        // Chunks are split in parallel and joined in file order, so each
+        // card's lines stay in order.
+        List<LongList[]> split = chunks.parallelStream()
+                .map(chunk -> split(regions.get((int) chunk[0]), (int) chunk[0], (int) chunk[1], (int) chunk[2],
+                        partitions))
+                .toList();
+        long[][] lines = new long[partitions][];
+        for (int partition = 0; partition < partitions; partition++) {
+            int size = 0;
+            for (LongList[] chunk : split) {
+                size += chunk[partition].size;
+            }
+            long[] offsets = new long[size];
+            int position = 0;
+            for (LongList[] chunk : split) {
+                System.arraycopy(chunk[partition].values, 0, offsets, position, chunk[partition].size);
+                position += chunk[partition].size;
+            }
+            lines[partition] = offsets;
+        }
+        return lines;
+    }
+
+    private static LongList[] split(ByteBuffer buffer, int region, int start, int end, int partitions) {
+        LongList[] lines = new LongList[partitions];
+        for (int i = 0; i < partitions; i++) {
+            lines[i] = new LongList();
+        }
+        int lineStart = start;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (!isBlank(buffer, lineStart, lineEnd)) {
+                int partition = Math.floorMod(cardHash(buffer, lineStart, lineEnd), partitions);
+                lines[partition].add((long) region << 32 | lineStart);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * Hashes the line's card number, found without parsing the line. A line
+     * without one hashes to 0; scoring it fails as it would in the service.
+     */
+    private static int cardHash(ByteBuffer buffer, int start, int end) {
+        int key = indexOf(buffer, CARD_KEY, start, end);
+        if (key < 0) {
+            return 0;
+        }
+        int position = key + CARD_KEY.length;
+        while (position < end && buffer.get(position) != '"') {
+            position++;
+        }
+        int hash = 0;
+        for (position++; position < end && buffer.get(position) != '"'; position++) {
+            hash = 31 * hash + buffer.get(position);
+        }
+        return hash;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] key, int start, int end) {
+        outer:
+        for (int i = start; i <= end - key.length; i++) {
+            for (int j = 0; j < key.length; j++) {
+                if (buffer.get(i + j) != key[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readLine(List<ByteBuffer> regions, long line) {
+        ByteBuffer buffer = regions.get((int) (line >>> 32));
+        int start = (int) line;
+        int end = start;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --name value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    /** A submitted transaction and its label, or null if it has none. */
+    private record Pending(CompletableFuture<String> result, Boolean label) {
+    }
+
+    /** A growable array of longs. */
+    private static final class LongList {
+        long[] values = new long[1024];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package server;
+
+import com.google.adk.events.Event;
+import com.google.adk.runner.Runner;
+import com.google.adk.sessions.BaseSessionService;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import agents.fraudagent.FraudAgent;
+
+/**
+ * Scores a batch of transactions with a single model call. Transactions are
+ * sent grouped by card, in order, and the model answers with a score and
+ * reason per index. Transactions the answer leaves out, or all of them if it
+ * cannot be read, are scored one at a time through the fallback. The call
+ * must finish by the earliest deadline in the batch; if it does not, or the
+ * model is unavailable, the whole batch gets degraded local scores.
+ */
+class BatchScorer implements MicroBatcher.BatchHandler<PreparedTransaction, String> {
+
+  private static final String APP_NAME = "FraudDetector";
+  private static final String USER_ID = "batch";
+  private static final Logger logger = LoggerFactory.getLogger(BatchScorer.class);
+
+  private final Runner runner;
+  private final BaseSessionService sessionService;
+  private final ModelGuard modelGuard;
+  private final Function<PreparedTransaction, CompletableFuture<String>> fallback;
+  private final BiFunction<PreparedTransaction, String, String> degrade;
+
+  BatchScorer(Runner runner, BaseSessionService sessionService, ModelGuard modelGuard,
+      Function<PreparedTransaction, CompletableFuture<String>> fallback, BiFunction<PreparedTransaction, String, String> degrade) {
+    this.runner = runner;
+    this.sessionService = sessionService;
+    this.modelGuard = modelGuard;
+    this.fallback = fallback;
+    this.degrade = degrade;
+  }
+
+  @Override
+  public CompletionStage<?> handle(List<PreparedTransaction> items, List<CompletableFuture<String>> results) {
+    return runModel(buildInput(items), earliestDeadline(items))
+        .thenApply(BatchScorer::parseScores)
+        .handle((scores, error) -> {
+          if (error == null) {
+            return complete(items, results, scores);
+          }
+          Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+          if (cause instanceof ModelUnavailableException) {
+            for (int i = 0; i < items.size(); i++) {
+              try {
+                results.get(i).complete(degrade.apply(items.get(i), cause.getMessage()));
+              } catch (RuntimeException degradeFailure) {
+                results.get(i).completeExceptionally(degradeFailure);
+              }
+            }
+            return CompletableFuture.completedFuture(null);
+          }
+          logger.warn("Could not score batch of {}, scoring one at a time", items.size(), cause);
+          return complete(items, results, Map.<Integer, JsonObject>of());
+        })
+        .thenCompose(done -> done);
+  }
+
+  /**
+   * Completes the results the model scored and sends the rest through the
+   * fallback, returning a stage that completes when they all have.
+   */
+  private CompletableFuture<?> complete(List<PreparedTransaction> items, List<CompletableFuture<String>> results,
+      Map<Integer, JsonObject> scores) {
+    List<CompletableFuture<String>> fallbacks = new ArrayList<>();
+    for (int i = 0; i < items.size(); i++) {
+      PreparedTransaction item = items.get(i);
+      JsonObject score = scores.get(i);
+      CompletableFuture<String> result = results.get(i);
+      try {
+        if (score == null) {
+          CompletableFuture<String> scored = fallback.apply(item);
+          scored.whenComplete((value, error) -> {
+            if (error == null) {
+              result.complete(value);
+            } else {
+              result.completeExceptionally(error);
+            }
+          });
+          fallbacks.add(scored);
+          continue;
+        }
+        JsonObject augmented = item.transaction.deepCopy();
+        augmented.add("fraud_likelihood", score.get("fraud_likelihood"));
+        augmented.add("fraud_reason", score.get("fraud_reason"));
+        FraudAgent.publishScored(augmented);
+        result.complete(augmented.toString());
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+    return CompletableFuture.allOf(fallbacks.toArray(new CompletableFuture<?>[0]))
+        .exceptionally(ignored -> null);
+  }
+
+  private static String buildInput(List<PreparedTransaction> items) {
+    List<Integer> order = new ArrayList<>(items.size());
+    for (int i = 0; i < items.size(); i++) {
+      order.add(i);
+    }
+    // A stable sort keeps each card's transactions in arrival order.
+    order.sort(Comparator.comparing(i -> items.get(i).card));
+    JsonArray input = new JsonArray();
+    for (int i : order) {
+      PreparedTransaction item = items.get(i);
+      JsonObject element = new JsonObject();
+      element.addProperty("index", i);
+      if (item.cardHistory != null) {
+        element.add("card_history", JsonParser.parseString(item.cardHistory));
+      }
+      if (item.preScreening != null) {
+        element.addProperty("pre_screening", item.preScreening);
+      }
+      element.add("transaction", item.transaction);
+      input.add(element);
+    }
+    return input.toString();
+  }
+
+  private static long earliestDeadline(List<PreparedTransaction> items) {
+    long earliest = items.get(0).deadlineNanos;
+    for (PreparedTransaction item : items) {
+      if (item.deadlineNanos - earliest < 0) {
+        earliest = item.deadlineNanos;
+      }
+    }
+    return earliest;
+  }
+
+  private CompletableFuture<String> runModel(String input, long deadline) {
+    long start = System.nanoTime();
+    return sessionService.createSession(APP_NAME, USER_ID, null, null)
+        .toCompletionStage()
+        .thenCompose(session -> {
+          Metrics.SESSION.recordSince(start);
+          Content message = Content.fromParts(Part.fromText(input));
+          return modelGuard.run(deadline, () -> runner.runAsync(USER_ID, session.id(), message))
+              .whenComplete((event, error) -> sessionService.deleteSession(APP_NAME, USER_ID, session.id())
+                  .subscribe(() -> {}, deleteError -> logger.warn("Could not delete batch session", deleteError)));
+        })
+        .thenApply(Event::stringifyContent)
+        .toCompletableFuture();
+  }
+
+  /** Reads the model's answer, ignoring any text around the JSON array. */
+  private static Map<Integer, JsonObject> parseScores(String output) {
+    int start = output.indexOf('[');
+    int end = output.lastIndexOf(']');
+    if (start < 0 || end < start) {
+      throw new IllegalStateException("No JSON array in model output");
+    }
+    Map<Integer, JsonObject> scores = new HashMap<>();
+    for (JsonElement element : JsonParser.parseString(output.substring(start, end + 1)).getAsJsonArray()) {
+      if (!element.isJsonObject()) {
+        continue;
+      }
+      JsonObject score = element.getAsJsonObject();
+      if (score.has("index") && score.has("fraud_likelihood") && score.has("fraud_reason")) {
+        scores.put(score.get("index").getAsInt(), score);
+      }
+    }
+    return scores;
+  }
+}
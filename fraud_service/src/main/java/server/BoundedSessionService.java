@@ -0,0 +1,274 @@
+package server;
+
+import com.google.adk.events.Event;
+import com.google.adk.sessions.BaseSessionService;
+import com.google.adk.sessions.GetSessionConfig;
+import com.google.adk.sessions.ListEventsResponse;
+import com.google.adk.sessions.ListSessionsResponse;
+import com.google.adk.sessions.Session;
+import com.google.common.collect.ImmutableList;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Single;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import config.Config;
+
+/**
+ * An in-memory session service with a bounded footprint. Sessions are kept in
+ * least-recently-used order and evicted when they have been idle for longer
+ * than the TTL, when there are more than the maximum number of sessions, or
+ * when the events held across all sessions exceed the event budget. A session
+ * that grows past the per-session limit loses its oldest turns.
+ *
+ * <p>Only session-scoped state is kept; "app:" and "user:" state is not shared
+ * across sessions as {@link com.google.adk.sessions.InMemorySessionService}
+ * does, since the fraud agent does not use it.
+ */
+public class BoundedSessionService implements BaseSessionService {
+
+  private final int maxSessions;
+  private final long maxTotalEvents;
+  private final int maxEventsPerSession;
+  private final long ttlNanos;
+
+  // Guarded by this. Iteration order is least recently used first.
+  private final LinkedHashMap<String, Entry> sessions = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalEvents;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public BoundedSessionService(int maxSessions, long maxTotalEvents, int maxEventsPerSession, long ttlSeconds) {
+    this.maxSessions = maxSessions;
+    this.maxTotalEvents = maxTotalEvents;
+    this.maxEventsPerSession = maxEventsPerSession;
+    this.ttlNanos = ttlSeconds * 1_000_000_000L;
+  }
+
+  /** Creates a service sized by the SESSION_* settings. */
+  public static BoundedSessionService fromConfig() {
+    return new BoundedSessionService(
+        Config.getInt("SESSION_MAX_COUNT", 100_000),
+        Config.getLong("SESSION_EVENT_BUDGET", 2_000_000),
+        Config.getInt("SESSION_MAX_EVENTS", 40),
+        Config.getLong("SESSION_TTL_SECONDS", 6 * 60 * 60));
+  }
+
+  @Override
+  public Single<Session> createSession(String appName, String userId,
+      ConcurrentMap<String, Object> state, String sessionId) {
+    String id = sessionId == null || sessionId.isBlank() ? UUID.randomUUID().toString() : sessionId.trim();
+    Session session = Session.builder(id)
+        .appName(appName)
+        .userId(userId)
+        .state(state == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(state))
+        .events(new ArrayList<>())
+        .lastUpdateTime(Instant.now())
+        .build();
+    synchronized (this) {
+      Entry previous = sessions.put(key(appName, userId, id), new Entry(session, System.nanoTime()));
+      if (previous != null) {
+        totalEvents -= previous.eventCount;
+      }
+      evictIfNeeded();
+    }
+    return Single.just(copy(session));
+  }
+
+  @Override
+  public Maybe<Session> getSession(String appName, String userId, String sessionId,
+      Optional<GetSessionConfig> config) {
+    Session session;
+    synchronized (this) {
+      String key = key(appName, userId, sessionId);
+      Entry entry = sessions.get(key);
+      long now = System.nanoTime();
+      if (entry != null && now - entry.lastAccessNanos > ttlNanos) {
+        remove(key);
+        evictions.incrementAndGet();
+        entry = null;
+      }
+      if (entry == null) {
+        misses.incrementAndGet();
+        return Maybe.empty();
+      }
+      hits.incrementAndGet();
+      entry.lastAccessNanos = now;
+      trim(entry);
+      session = copy(entry.session);
+    }
+    config.flatMap(GetSessionConfig::numRecentEvents).ifPresent(count -> {
+      List<Event> events = session.events();
+      if (count < events.size()) {
+        events.subList(0, events.size() - count).clear();
+      }
+    });
+    return Maybe.just(session);
+  }
+
+  @Override
+  public Single<ListSessionsResponse> listSessions(String appName, String userId) {
+    String prefix = key(appName, userId, "");
+    List<Session> matches = new ArrayList<>();
+    synchronized (this) {
+      for (Map.Entry<String, Entry> entry : sessions.entrySet()) {
+        if (entry.getKey().startsWith(prefix)) {
+          Session session = entry.getValue().session;
+          matches.add(Session.builder(session.id())
+              .appName(session.appName())
+              .userId(session.userId())
+              .lastUpdateTime(session.lastUpdateTime())
+              .build());
+        }
+      }
+    }
+    return Single.just(ListSessionsResponse.builder().sessions(matches).build());
+  }
+
+  @Override
+  public Completable deleteSession(String appName, String userId, String sessionId) {
+    synchronized (this) {
+      remove(key(appName, userId, sessionId));
+    }
+    return Completable.complete();
+  }
+
+  @Override
+  public Single<ListEventsResponse> listEvents(String appName, String userId, String sessionId) {
+    ImmutableList<Event> events;
+    synchronized (this) {
+      Entry entry = sessions.get(key(appName, userId, sessionId));
+      events = entry == null ? ImmutableList.of() : ImmutableList.copyOf(entry.session.events());
+    }
+    return Single.just(ListEventsResponse.builder().events(events).build());
+  }
+
+  @Override
+  public Single<Event> appendEvent(Session session, Event event) {
+    BaseSessionService.super.appendEvent(session, event);
+    Instant now = Instant.now();
+    session.lastUpdateTime(now);
+    synchronized (this) {
+      // The runner works on its own copy; the event is applied to the stored
+      // session too. A session deleted or evicted meanwhile stays gone.
+      Entry entry = sessions.get(key(session.appName(), session.userId(), session.id()));
+      if (entry != null) {
+        List<Event> events = entry.session.events();
+        int before = events.size();
+        BaseSessionService.super.appendEvent(entry.session, event);
+        entry.session.lastUpdateTime(now);
+        entry.eventCount += events.size() - before;
+        totalEvents += events.size() - before;
+        entry.lastAccessNanos = System.nanoTime();
+        evictIfNeeded();
+      }
+    }
+    return Single.just(event);
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  public synchronized int sessionCount() {
+    return sessions.size();
+  }
+
+  public synchronized long eventCount() {
+    return totalEvents;
+  }
+
+  private void evictIfNeeded() {
+    long now = System.nanoTime();
+    Iterator<Entry> eldest = sessions.values().iterator();
+    while (eldest.hasNext()) {
+      Entry entry = eldest.next();
+      boolean overBudget = sessions.size() > maxSessions || totalEvents > maxTotalEvents;
+      if (!overBudget && now - entry.lastAccessNanos <= ttlNanos) {
+        break;
+      }
+      eldest.remove();
+      totalEvents -= entry.eventCount;
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops the oldest turns of a session over the per-session limit. Events are
+   * only removed up to the start of a user turn so that a function response is
+   * never kept without the call that produced it; if no user turn starts
+   * within the last turns kept, the most recent events are kept as they are.
+   */
+  private void trim(Entry entry) {
+    List<Event> events = entry.session.events();
+    if (events.size() <= maxEventsPerSession) {
+      return;
+    }
+    int cut = events.size() - maxEventsPerSession;
+    int turnStart = cut;
+    while (turnStart < events.size() && !"user".equals(events.get(turnStart).author())) {
+      turnStart++;
+    }
+    if (turnStart < events.size()) {
+      cut = turnStart;
+    }
+    events.subList(0, cut).clear();
+    totalEvents -= entry.eventCount - events.size();
+    entry.eventCount = events.size();
+  }
+
+  private void remove(String key) {
+    Entry entry = sessions.remove(key);
+    if (entry != null) {
+      totalEvents -= entry.eventCount;
+    }
+  }
+
+  private static String key(String appName, String userId, String sessionId) {
+    return appName + '\u0000' + userId + '\u0000' + sessionId;
+  }
+
+  private static Session copy(Session session) {
+    return Session.builder(session.id())
+        .appName(session.appName())
+        .userId(session.userId())
+        .state(new ConcurrentHashMap<>(session.state()))
+        .events(new ArrayList<>(session.events()))
+        .lastUpdateTime(session.lastUpdateTime())
+        .build();
+  }
+
+  private static final class Entry {
+    final Session session;
+    int eventCount;
+    long lastAccessNanos;
+
+    Entry(Session session, long lastAccessNanos) {
+      this.session = session;
+      this.eventCount = session.events().size();
+      this.lastAccessNanos = lastAccessNanos;
+    }
+  }
+}
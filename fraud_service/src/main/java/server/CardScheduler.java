@@ -0,0 +1,128 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks on a shared executor so that tasks for the same card run one at
+ * a time in submission order, while tasks for different cards run in parallel.
+ *
+ * <p>Each card with pending work has a lane holding its queued tasks. At most
+ * one task per lane is on the executor at any time; when it finishes, the next
+ * one is handed to the executor rather than run inline, so a busy card cannot
+ * hold on to a worker. A lane is removed as soon as it drains, so memory is
+ * proportional to the work in flight rather than to the number of cards seen.
+ *
+ * <p>An asynchronous task keeps its lane busy until the stage it returns
+ * completes, but gives its worker back as soon as it has returned it, so a
+ * card waiting on the model holds no thread.
+ */
+public class CardScheduler {
+
+  private final Executor executor;
+  private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+  public CardScheduler(Executor executor) {
+    this.executor = executor;
+  }
+
+  /** Queues the task behind any earlier tasks for the same card. */
+  public <T> CompletableFuture<T> submit(String card, Callable<T> task) {
+    return submitAsync(card, () -> {
+      try {
+        return CompletableFuture.completedFuture(task.call());
+      } catch (Exception e) {
+        return CompletableFuture.failedFuture(e);
+      }
+    });
+  }
+
+  /**
+   * Queues the task behind any earlier tasks for the same card. The card's
+   * next task starts once the stage the task returns has completed.
+   */
+  public <T> CompletableFuture<T> submitAsync(String card, Supplier<? extends CompletionStage<T>> task) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Runnable work = () -> {
+      CompletionStage<T> stage;
+      try {
+        stage = task.get();
+      } catch (Throwable t) {
+        result.completeExceptionally(t);
+        next(card);
+        return;
+      }
+      stage.whenComplete((value, error) -> {
+        try {
+          if (error != null) {
+            result.completeExceptionally(error);
+          } else {
+            result.complete(value);
+          }
+        } finally {
+          next(card);
+        }
+      });
+    };
+    boolean[] startLane = new boolean[1];
+    lanes.compute(card, (key, lane) -> {
+      if (lane == null) {
+        lane = new Lane();
+      }
+      if (lane.running) {
+        lane.pending.add(work);
+      } else {
+        lane.running = true;
+        startLane[0] = true;
+      }
+      return lane;
+    });
+    if (startLane[0]) {
+      dispatch(card, work);
+    }
+    return result;
+  }
+
+  /** Returns the number of cards that currently have queued or running work. */
+  public int activeCards() {
+    return lanes.size();
+  }
+
+  /** Starts the task; it calls next(card) itself once it has finished. */
+  private void dispatch(String card, Runnable work) {
+    try {
+      executor.execute(work);
+    } catch (RuntimeException e) {
+      // The executor refused the task, e.g. during shutdown. Run it here so
+      // its caller still gets an answer and the lane keeps draining.
+      work.run();
+    }
+  }
+
+  private void next(String card) {
+    Runnable[] next = new Runnable[1];
+    lanes.computeIfPresent(card, (key, lane) -> {
+      next[0] = lane.pending.poll();
+      if (next[0] == null) {
+        // Drained: reclaim the lane.
+        return null;
+      }
+      return lane;
+    });
+    if (next[0] != null) {
+      dispatch(card, next[0]);
+    }
+  }
+
+  private static final class Lane {
+    final Queue<Runnable> pending = new ArrayDeque<>();
+    boolean running;
+  }
+}
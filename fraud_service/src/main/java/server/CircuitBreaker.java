@@ -0,0 +1,130 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Config;
+
+/**
+ * Stops calls to a dependency that keeps failing. It counts the outcomes of
+ * the last calls and opens once enough of them failed; while open, calls are
+ * refused outright. After a cool-down one trial call is let through: if it
+ * succeeds the breaker closes again, otherwise it stays open for another
+ * cool-down.
+ */
+class CircuitBreaker {
+
+  private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final boolean[] outcomes;
+  private final double failureRatio;
+  private final long openNanos;
+
+  private State state = State.CLOSED;
+  private int next;
+  private int recorded;
+  private int failures;
+  private long openedAt;
+  private boolean trialInFlight;
+  private long openedCount;
+
+  /**
+   * @param window calls whose outcomes are counted
+   * @param failureRatio share of those calls that must fail to open the breaker
+   * @param openMillis how long the breaker stays open before a trial call
+   */
+  CircuitBreaker(int window, double failureRatio, long openMillis) {
+    this.outcomes = new boolean[window];
+    this.failureRatio = failureRatio;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+  }
+
+  static CircuitBreaker fromConfig() {
+    return new CircuitBreaker(
+        Config.getInt("CIRCUIT_WINDOW", 20),
+        Config.getDouble("CIRCUIT_FAILURE_RATIO", 0.5),
+        Config.getLong("CIRCUIT_OPEN_MS", 10_000));
+  }
+
+  /** Returns whether a call may go ahead. Every allowed call must report its outcome. */
+  synchronized boolean allowRequest() {
+    if (state == State.OPEN) {
+      if (System.nanoTime() - openedAt < openNanos) {
+        return false;
+      }
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+    }
+    if (state == State.HALF_OPEN) {
+      if (trialInFlight) {
+        return false;
+      }
+      trialInFlight = true;
+    }
+    return true;
+  }
+
+  synchronized void recordSuccess() {
+    if (state == State.HALF_OPEN) {
+      close();
+    } else if (state == State.CLOSED) {
+      record(false);
+    }
+  }
+
+  synchronized void recordFailure() {
+    if (state == State.HALF_OPEN) {
+      open();
+    } else if (state == State.CLOSED) {
+      record(true);
+      if (recorded == outcomes.length && failures >= failureRatio * recorded) {
+        open();
+      }
+    }
+  }
+
+  synchronized State state() {
+    return state;
+  }
+
+  /** Returns how many times the breaker has opened. */
+  synchronized long openedCount() {
+    return openedCount;
+  }
+
+  private void record(boolean failure) {
+    if (recorded == outcomes.length) {
+      if (outcomes[next]) {
+        failures--;
+      }
+    } else {
+      recorded++;
+    }
+    outcomes[next] = failure;
+    if (failure) {
+      failures++;
+    }
+    next = (next + 1) % outcomes.length;
+  }
+
+  private void open() {
+    if (state == State.CLOSED) {
+      logger.warn("Model circuit opened: {} of the last {} calls failed", failures, recorded);
+    }
+    state = State.OPEN;
+    openedAt = System.nanoTime();
+    openedCount++;
+  }
+
+  private void close() {
+    logger.info("Model circuit closed");
+    state = State.CLOSED;
+    next = 0;
+    recorded = 0;
+    failures = 0;
+  }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most a fixed number of asynchronous tasks at a time. The others
+ * wait in arrival order and start, on the executor, as running ones
+ * complete. A task counts as running until the stage it returns completes,
+ * but no thread waits for it.
+ */
+final class ConcurrencyLimit {
+
+  private final int limit;
+  private final Executor executor;
+  private final Queue<Runnable> waiting = new ArrayDeque<>();
+  private int running;
+
+  ConcurrencyLimit(int limit, Executor executor) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("limit must be positive: " + limit);
+    }
+    this.limit = limit;
+    this.executor = executor;
+  }
+
+  /** Starts the task now if fewer than the limit are running, otherwise once one completes. */
+  <T> CompletableFuture<T> submit(Supplier<? extends CompletionStage<T>> task) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Runnable work = () -> {
+      CompletionStage<T> stage;
+      try {
+        stage = task.get();
+      } catch (Throwable t) {
+        release();
+        result.completeExceptionally(t);
+        return;
+      }
+      stage.whenComplete((value, error) -> {
+        release();
+        if (error != null) {
+          result.completeExceptionally(error);
+        } else {
+          result.complete(value);
+        }
+      });
+    };
+    boolean startNow;
+    synchronized (this) {
+      startNow = running < limit;
+      if (startNow) {
+        running++;
+      } else {
+        waiting.add(work);
+      }
+    }
+    if (startNow) {
+      work.run();
+    }
+    return result;
+  }
+
+  /** Hands the finished task's place to the next waiting one, if any. */
+  private void release() {
+    Runnable next;
+    synchronized (this) {
+      next = waiting.poll();
+      if (next == null) {
+        running--;
+        return;
+      }
+    }
+    executor.execute(next);
+  }
+}
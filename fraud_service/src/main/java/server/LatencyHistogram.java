@@ -0,0 +1,103 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram. Values are kept
+ * in microseconds in buckets that are exact below 64us and after that split
+ * each power of two into 32 steps, so any recorded value is reported within
+ * about 3% of its true value. Recording only increments counters and never
+ * allocates.
+ */
+public class LatencyHistogram {
+
+  private static final int LINEAR_BUCKETS = 64;
+  private static final int SUB_BUCKETS = 32;
+  private static final int SUB_BUCKET_BITS = 5;
+  // 2^42us is about 50 days; anything longer lands in the last bucket.
+  private static final int MAX_EXPONENT = 42;
+  private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 5) * SUB_BUCKETS;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumMicros = new LongAdder();
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /** Records the time since startNanos, a value from System.nanoTime(). */
+  public void recordSince(long startNanos) {
+    recordNanos(System.nanoTime() - startNanos);
+  }
+
+  public void recordNanos(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    counts.incrementAndGet(index(micros));
+    count.increment();
+    sumMicros.add(micros);
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public double sumSeconds() {
+    return sumMicros.sum() / 1e6;
+  }
+
+  /**
+   * Returns the value in seconds below which the given fraction of recorded
+   * values fall, or 0 if nothing has been recorded.
+   */
+  public double quantileSeconds(double quantile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return highestEquivalentValue(i) / 1e6;
+      }
+    }
+    return highestEquivalentValue(BUCKETS - 1) / 1e6;
+  }
+
+  private static int index(long micros) {
+    if (micros < LINEAR_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+    return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Returns the largest value that falls in the bucket. */
+  private static long highestEquivalentValue(int index) {
+    if (index < LINEAR_BUCKETS) {
+      return index;
+    }
+    int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+    long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,158 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import agents.fraudagent.FraudAgent;
+import agents.fraudagent.RecordPublisher;
+
+/**
+ * Process-wide timings and counters, rendered for /metrics in the Prometheus
+ * text format. Stages are recorded where the work happens; the totals for
+ * sessions, pre-scoring and publishing are read from their owners when
+ * scraped.
+ */
+public final class Metrics {
+
+  public static final LatencyHistogram PARSE = new LatencyHistogram("parse");
+  // Time from arrival until the card's lane picks the transaction up.
+  public static final LatencyHistogram QUEUE = new LatencyHistogram("queue");
+  public static final LatencyHistogram SESSION = new LatencyHistogram("session");
+  public static final LatencyHistogram MODEL = new LatencyHistogram("model");
+  public static final LatencyHistogram TOOL = new LatencyHistogram("tool");
+  // Time from queueing a record until Pub/Sub acknowledges it.
+  public static final LatencyHistogram PUBLISH = new LatencyHistogram("publish");
+  public static final LatencyHistogram RESPONSE_WRITE = new LatencyHistogram("response_write");
+  // Time from admission until the response is written.
+  public static final LatencyHistogram REQUEST = new LatencyHistogram("request");
+
+  private static final List<LatencyHistogram> STAGES =
+      List.of(PARSE, QUEUE, SESSION, MODEL, TOOL, PUBLISH, RESPONSE_WRITE, REQUEST);
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  public static final AtomicLong IN_FLIGHT = new AtomicLong();
+  public static final LongAdder REQUESTS = new LongAdder();
+  public static final LongAdder REJECTED = new LongAdder();
+  public static final LongAdder CLIENT_ERRORS = new LongAdder();
+  public static final LongAdder ERRORS = new LongAdder();
+
+  private Metrics() {
+  }
+
+  /** Renders all metrics, including those owned by the agent caller. */
+  public static String render(AgentCaller agentCaller) {
+    StringBuilder out = new StringBuilder(4096);
+    summary(out, "fraud_stage_latency_seconds", "Time spent in each stage of scoring a transaction.", "stage",
+        STAGES);
+
+    List<TierStats> tiers = agentCaller.tierStats();
+    List<LatencyHistogram> tierLatencies = new ArrayList<>(tiers.size());
+    for (TierStats tier : tiers) {
+      tierLatencies.add(tier.latency());
+    }
+    summary(out, "fraud_tier_latency_seconds", "Time each tier of the scoring cascade takes to score a transaction.",
+        "tier", tierLatencies);
+    tierCounter(out, "fraud_tier_scored_total", "Transactions each cascade tier scored.", tiers,
+        TierStats::scoredCount);
+    tierCounter(out, "fraud_tier_escalated_total", "Transactions each cascade tier passed on to the next.", tiers,
+        TierStats::escalatedCount);
+    tierCounter(out, "fraud_tier_failures_total", "Transactions each cascade tier could not score.", tiers,
+        TierStats::failedCount);
+
+    gauge(out, "fraud_requests_in_flight", "Requests admitted and not yet answered.", IN_FLIGHT.get());
+    gauge(out, "fraud_jvm_threads", "Live threads in the JVM.", ManagementFactory.getThreadMXBean().getThreadCount());
+    counter(out, "fraud_requests_total", "Requests admitted.", REQUESTS.sum());
+    counter(out, "fraud_requests_rejected_total", "Requests turned away with 503 because the service was full.",
+        REJECTED.sum());
+    counter(out, "fraud_request_client_errors_total", "Requests that were not valid transactions.",
+        CLIENT_ERRORS.sum());
+    counter(out, "fraud_request_errors_total", "Requests that failed while being scored.", ERRORS.sum());
+
+    counter(out, "fraud_prescored_total", "Transactions scored by the cascade in front of the agent.",
+        agentCaller.preScoredCount());
+    counter(out, "fraud_prescore_bypassed_total", "Transactions the cascade answered without the agent.",
+        agentCaller.bypassedCount());
+    counter(out, "fraud_degraded_total", "Transactions given a degraded local score because the model was unavailable.",
+        agentCaller.degradedCount());
+    ModelGuard modelGuard = agentCaller.modelGuard();
+    gauge(out, "fraud_model_calls_in_flight", "Model calls started and not yet finished.",
+        modelGuard.inFlightCount());
+    counter(out, "fraud_model_timeouts_total", "Model calls cancelled at their deadline.", modelGuard.timeoutCount());
+    counter(out, "fraud_model_failures_total", "Model calls that failed.", modelGuard.failureCount());
+    counter(out, "fraud_model_refused_total", "Model calls not made because of the deadline or the circuit breaker.",
+        modelGuard.refusedCount());
+    gauge(out, "fraud_model_circuit_state", "Model circuit breaker: 0 closed, 1 open, 2 half-open.",
+        modelGuard.breaker().state().ordinal());
+    counter(out, "fraud_model_circuit_opened_total", "Times the model circuit breaker opened.",
+        modelGuard.breaker().openedCount());
+    VerdictCache verdicts = agentCaller.verdictCache();
+    gauge(out, "fraud_verdict_cache_entries", "Transactions whose answers are kept for duplicates.", verdicts.size());
+    counter(out, "fraud_duplicates_answered_total", "Duplicate transactions answered with an earlier answer.",
+        verdicts.answeredCount());
+    counter(out, "fraud_duplicates_coalesced_total",
+        "Duplicate transactions that waited for the answer to the original still being scored.",
+        verdicts.coalescedCount());
+    gauge(out, "fraud_feature_cards", "Cards with rolling features in memory.", agentCaller.featureCardCount());
+    counter(out, "fraud_feature_restored_total", "Cards whose features were restored from the snapshot.",
+        agentCaller.featureRestoredCount());
+
+    BoundedSessionService sessions = agentCaller.sessionService();
+    gauge(out, "fraud_sessions", "Sessions held in memory.", sessions.sessionCount());
+    gauge(out, "fraud_session_events", "Events held across all sessions.", sessions.eventCount());
+    counter(out, "fraud_session_hits_total", "Session lookups that found the session.", sessions.hits());
+    counter(out, "fraud_session_misses_total", "Session lookups that did not.", sessions.misses());
+    counter(out, "fraud_session_evictions_total", "Sessions evicted for size or age.", sessions.evictions());
+
+    RecordPublisher publisher = FraudAgent.publisher();
+    counter(out, "fraud_published_total", "Records published.", publisher.publishedCount());
+    counter(out, "fraud_publish_retries_total", "Publish attempts that were retried.", publisher.retriedCount());
+    counter(out, "fraud_publish_failures_total", "Records dropped after all retries failed.",
+        publisher.failedCount());
+    counter(out, "fraud_publish_dropped_total", "Records dropped because too many were waiting to be published.",
+        publisher.droppedCount());
+    return out.toString();
+  }
+
+  private static void summary(StringBuilder out, String name, String help, String label,
+      List<LatencyHistogram> histograms) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" summary\n");
+    for (LatencyHistogram histogram : histograms) {
+      for (double quantile : QUANTILES) {
+        out.append(name).append('{').append(label).append("=\"").append(histogram.name())
+            .append("\",quantile=\"").append(quantile).append("\"} ")
+            .append(histogram.quantileSeconds(quantile)).append('\n');
+      }
+      out.append(name).append("_sum{").append(label).append("=\"").append(histogram.name()).append("\"} ")
+          .append(histogram.sumSeconds()).append('\n');
+      out.append(name).append("_count{").append(label).append("=\"").append(histogram.name()).append("\"} ")
+          .append(histogram.count()).append('\n');
+    }
+  }
+
+  private static void tierCounter(StringBuilder out, String name, String help, List<TierStats> tiers,
+      ToLongFunction<TierStats> value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    for (TierStats tier : tiers) {
+      out.append(name).append("{tier=\"").append(tier.tier()).append("\"} ")
+          .append(value.applyAsLong(tier)).append('\n');
+    }
+  }
+
+  private static void counter(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void gauge(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" gauge\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+}
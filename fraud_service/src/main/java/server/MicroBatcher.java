@@ -0,0 +1,117 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers items into batches and hands each batch to a handler. A batch is
+ * sent once it holds maxSize items or when the first item in it has waited
+ * windowMs, whichever comes first. Every item gets its own future, which the
+ * handler completes; any the handler leaves incomplete when the stage it
+ * returns completes, or that it fails to reach because it failed, are failed.
+ */
+public class MicroBatcher<T, R> {
+
+  /**
+   * Processes one batch, completing results.get(i) for items.get(i). Returns
+   * a stage that completes once it is done with the batch.
+   */
+  public interface BatchHandler<T, R> {
+    CompletionStage<?> handle(List<T> items, List<CompletableFuture<R>> results) throws Exception;
+  }
+
+  private final int maxSize;
+  private final long windowMs;
+  private final ScheduledExecutorService timer;
+  private final Executor executor;
+  private final BatchHandler<T, R> handler;
+
+  // Guarded by this.
+  private List<T> items = new ArrayList<>();
+  private List<CompletableFuture<R>> results = new ArrayList<>();
+  private long generation;
+
+  public MicroBatcher(int maxSize, long windowMs, ScheduledExecutorService timer, Executor executor,
+      BatchHandler<T, R> handler) {
+    this.maxSize = maxSize;
+    this.windowMs = windowMs;
+    this.timer = timer;
+    this.executor = executor;
+    this.handler = handler;
+  }
+
+  /** Adds the item to the current batch. */
+  public CompletableFuture<R> add(T item) {
+    CompletableFuture<R> result = new CompletableFuture<>();
+    List<T> fullItems = null;
+    List<CompletableFuture<R>> fullResults = null;
+    synchronized (this) {
+      items.add(item);
+      results.add(result);
+      if (items.size() == 1) {
+        long batch = generation;
+        timer.schedule(() -> flush(batch), windowMs, TimeUnit.MILLISECONDS);
+      }
+      if (items.size() >= maxSize) {
+        fullItems = items;
+        fullResults = results;
+        reset();
+      }
+    }
+    if (fullItems != null) {
+      send(fullItems, fullResults);
+    }
+    return result;
+  }
+
+  /** Sends the batch if it is still the one the timer was started for. */
+  private void flush(long batch) {
+    List<T> dueItems;
+    List<CompletableFuture<R>> dueResults;
+    synchronized (this) {
+      if (batch != generation || items.isEmpty()) {
+        return;
+      }
+      dueItems = items;
+      dueResults = results;
+      reset();
+    }
+    send(dueItems, dueResults);
+  }
+
+  private void reset() {
+    items = new ArrayList<>();
+    results = new ArrayList<>();
+    generation++;
+  }
+
+  private void send(List<T> batchItems, List<CompletableFuture<R>> batchResults) {
+    Runnable run = () -> {
+      CompletionStage<?> handled;
+      try {
+        handled = handler.handle(batchItems, batchResults);
+      } catch (Exception e) {
+        handled = CompletableFuture.failedFuture(e);
+      }
+      handled.whenComplete((ignored, failure) -> {
+        for (CompletableFuture<R> result : batchResults) {
+          if (!result.isDone()) {
+            result.completeExceptionally(failure != null
+                ? failure
+                : new IllegalStateException("Batch handler did not produce a result"));
+          }
+        }
+      });
+    };
+    try {
+      executor.execute(run);
+    } catch (RuntimeException e) {
+      run.run();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package server;
+
+import com.google.adk.events.Event;
+
+import io.reactivex.rxjava3.core.Flowable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.LoggerFactory;
+
+import config.Config;
+
+/**
+ * Runs agent calls within a deadline and behind a circuit breaker. A call
+ * that would start with less than MODEL_MIN_BUDGET_MS left before its
+ * deadline, that the breaker refuses, that is still running at its deadline
+ * or that fails ends in a {@link ModelUnavailableException}, and the caller
+ * scores the transaction locally instead. Only timeouts and failures of
+ * calls that were made count against the breaker, so time lost queueing
+ * locally is not blamed on the model.
+ *
+ * <p>Runs are subscribed to, not waited on, so no thread is held while the
+ * model is working.
+ */
+class ModelGuard {
+
+  private static final RateLimitedLogger failureLog =
+      new RateLimitedLogger(LoggerFactory.getLogger(ModelGuard.class), 1, TimeUnit.SECONDS);
+
+  // Calls with less time than this left are not made: the model could not
+  // answer, and timing out would count against it.
+  private static final long MIN_BUDGET_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Config.getLong("MODEL_MIN_BUDGET_MS", 250));
+
+  private final CircuitBreaker breaker;
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder refused = new LongAdder();
+  private final AtomicLong inFlight = new AtomicLong();
+
+  ModelGuard(CircuitBreaker breaker) {
+    this.breaker = breaker;
+  }
+
+  /**
+   * Runs the agent and completes with its final event, cancelling the run if
+   * it has not finished by the deadline, a System.nanoTime() value.
+   */
+  CompletableFuture<Event> run(long deadlineNanos, Supplier<Flowable<Event>> agentRun) {
+    long remaining = deadlineNanos - System.nanoTime();
+    if (remaining < MIN_BUDGET_NANOS) {
+      refused.increment();
+      return CompletableFuture.failedFuture(
+          new ModelUnavailableException("too little time left to call the model"));
+    }
+    if (!breaker.allowRequest()) {
+      refused.increment();
+      return CompletableFuture.failedFuture(new ModelUnavailableException("model circuit open"));
+    }
+    inFlight.incrementAndGet();
+    CompletableFuture<Event> run;
+    try {
+      run = agentRun.get()
+          .timeout(remaining, TimeUnit.NANOSECONDS)
+          .lastOrError()
+          .toCompletionStage()
+          .toCompletableFuture();
+    } catch (RuntimeException e) {
+      run = CompletableFuture.failedFuture(e);
+    }
+    return run.handle((event, error) -> {
+      inFlight.decrementAndGet();
+      if (error == null) {
+        breaker.recordSuccess();
+        return event;
+      }
+      breaker.recordFailure();
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (cause instanceof TimeoutException) {
+        timeouts.increment();
+        throw new ModelUnavailableException("model did not answer in time", cause);
+      }
+      failures.increment();
+      failureLog.warn("Model call failed", cause);
+      throw new ModelUnavailableException("model call failed", cause);
+    });
+  }
+
+  CircuitBreaker breaker() {
+    return breaker;
+  }
+
+  /** Returns how many model calls are running. */
+  long inFlightCount() {
+    return inFlight.get();
+  }
+
+  /** Returns how many calls were cancelled at their deadline. */
+  long timeoutCount() {
+    return timeouts.sum();
+  }
+
+  /** Returns how many calls failed. */
+  long failureCount() {
+    return failures.sum();
+  }
+
+  /** Returns how many calls were not made because of the deadline or the breaker. */
+  long refusedCount() {
+    return refused.sum();
+  }
+}
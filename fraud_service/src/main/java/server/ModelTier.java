@@ -0,0 +1,95 @@
+package server;
+
+import com.google.adk.agents.BaseAgent;
+import com.google.adk.artifacts.InMemoryArtifactService;
+import com.google.adk.runner.Runner;
+import com.google.adk.sessions.BaseSessionService;
+import com.google.adk.sessions.InMemorySessionService;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import features.CardFeatures;
+import scoring.PreScore;
+import scoring.ScoringTier;
+
+/**
+ * A cascade tier that asks a cheaper model for the score, given the
+ * transaction and the card's features. Each call runs in a throwaway session
+ * behind its own deadline and circuit breaker, so a slow or failing triage
+ * model escalates transactions rather than holding them up or tripping the
+ * breaker of the agent's model.
+ */
+class ModelTier implements ScoringTier {
+
+  private static final String APP_NAME = "FraudDetector";
+  private static final String USER_ID = "triage";
+  private static final Logger logger = LoggerFactory.getLogger(ModelTier.class);
+
+  private final String name;
+  private final Runner runner;
+  private final BaseSessionService sessionService;
+  private final ModelGuard modelGuard;
+  private final long timeoutNanos;
+  private final long windowMinutes;
+
+  /**
+   * @param timeoutMillis longest the tier may take, so that escalated
+   *     transactions leave the agent enough of their deadline
+   */
+  ModelTier(String name, BaseAgent agent, ModelGuard modelGuard, long timeoutMillis, long windowMinutes) {
+    this.name = name;
+    this.sessionService = new InMemorySessionService();
+    this.runner = new Runner(agent, APP_NAME, new InMemoryArtifactService(), sessionService);
+    this.modelGuard = modelGuard;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.windowMinutes = windowMinutes;
+  }
+
+  @Override
+  public String name() {
+    return name;
+  }
+
+  @Override
+  public CompletionStage<PreScore> score(JsonObject transaction, CardFeatures features, long deadlineNanos) {
+    long tierDeadline = System.nanoTime() + timeoutNanos;
+    long deadline = tierDeadline - deadlineNanos < 0 ? tierDeadline : deadlineNanos;
+    Content message = Content.fromParts(Part.fromText(prompt(transaction, features)));
+    return sessionService.createSession(APP_NAME, USER_ID, null, null)
+        .toCompletionStage()
+        .thenCompose(session -> modelGuard.run(deadline, () -> runner.runAsync(USER_ID, session.id(), message))
+            .whenComplete((event, error) -> sessionService.deleteSession(APP_NAME, USER_ID, session.id())
+                .subscribe(() -> {}, deleteError -> logger.warn("Could not delete triage session", deleteError))))
+        .thenApply(event -> parseScore(event.stringifyContent()));
+  }
+
+  private String prompt(JsonObject transaction, CardFeatures features) {
+    StringBuilder prompt = new StringBuilder();
+    if (features.count() > 0) {
+      prompt.append("Card features: ").append(features.toJson(windowMinutes)).append('\n');
+    }
+    return prompt.append(transaction).toString();
+  }
+
+  /** Reads the score from the model's answer, ignoring any text around the JSON object. */
+  private static PreScore parseScore(String output) {
+    int start = output.indexOf('{');
+    int end = output.lastIndexOf('}');
+    if (start < 0 || end < start) {
+      throw new IllegalStateException("No JSON object in triage model output");
+    }
+    JsonObject score = JsonParser.parseString(output.substring(start, end + 1)).getAsJsonObject();
+    if (!score.has("fraud_likelihood") || !score.has("fraud_reason")) {
+      throw new IllegalStateException("No score in triage model output");
+    }
+    return new PreScore(score.get("fraud_likelihood").getAsDouble(), score.get("fraud_reason").getAsString());
+  }
+}
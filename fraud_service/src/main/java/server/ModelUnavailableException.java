@@ -0,0 +1,18 @@
+package server;
+
+/**
+ * Thrown instead of calling the model, or instead of waiting for it any
+ * longer, when a transaction has to be scored without it.
+ */
+class ModelUnavailableException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  ModelUnavailableException(String reason) {
+    super(reason);
+  }
+
+  ModelUnavailableException(String reason, Throwable cause) {
+    super(reason, cause);
+  }
+}
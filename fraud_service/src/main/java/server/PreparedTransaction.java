@@ -0,0 +1,68 @@
+package server;
+
+import com.google.gson.JsonObject;
+
+import features.CardFeatures;
+import scoring.PreScore;
+
+/**
+ * A transaction after its card's local state has been consulted and updated:
+ * either already answered by a cascade tier or ready to send to the model.
+ */
+final class PreparedTransaction {
+
+  final String card;
+  final JsonObject transaction;
+  // Set when the transaction was answered without the model.
+  final String result;
+  // Context for the model; null when there is none.
+  final String cardHistory;
+  final String preScreening;
+  // What a degraded answer is built from if the model cannot be used.
+  final CardFeatures features;
+  final PreScore preScore;
+  // System.nanoTime() by which the transaction must be answered.
+  final long deadlineNanos;
+  // Set once the model could not answer and the transaction was degraded.
+  volatile boolean degraded;
+  // Set once the agent's publish tool ran for the transaction.
+  volatile boolean published;
+
+  private PreparedTransaction(String card, JsonObject transaction, String result, String cardHistory,
+      String preScreening, CardFeatures features, PreScore preScore, long deadlineNanos) {
+    this.card = card;
+    this.transaction = transaction;
+    this.result = result;
+    this.cardHistory = cardHistory;
+    this.preScreening = preScreening;
+    this.features = features;
+    this.preScore = preScore;
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  static PreparedTransaction answered(String card, JsonObject transaction, String result) {
+    return new PreparedTransaction(card, transaction, result, null, null, null, null, 0);
+  }
+
+  /**
+   * @param preScore the last cascade tier's score, or null if no tier scored it
+   * @param preScreening what the cascade tiers found, or null
+   */
+  static PreparedTransaction forModel(String card, JsonObject transaction, String cardHistory,
+      CardFeatures features, PreScore preScore, String preScreening, long deadlineNanos) {
+    return new PreparedTransaction(card, transaction, null, cardHistory, preScreening, features, preScore,
+        deadlineNanos);
+  }
+
+  /** Builds the message for scoring this transaction on its own. */
+  String prompt() {
+    StringBuilder prompt = new StringBuilder();
+    if (cardHistory != null) {
+      prompt.append("Card history: ").append(cardHistory).append('\n');
+    }
+    if (preScreening != null) {
+      prompt.append("Pre-screening indicators: ").append(preScreening).append('\n');
+    }
+    return prompt.append(transaction).toString();
+  }
+}
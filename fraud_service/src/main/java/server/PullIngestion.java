@@ -0,0 +1,108 @@
+package server;
+
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController.LimitExceededBehavior;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.pubsub.v1.AckReplyConsumer;
+import com.google.cloud.pubsub.v1.MessageReceiver;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.pubsub.v1.ProjectSubscriptionName;
+import com.google.pubsub.v1.PubsubMessage;
+
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import config.Config;
+
+/**
+ * Reads transactions straight from a Pub/Sub subscription with streaming pull
+ * instead of waiting for push requests. Flow control caps the messages and
+ * bytes held at once, so a busy service simply pulls more slowly.
+ *
+ * <p>Each message goes to the card's scheduler lane and is acked only after it
+ * has been scored; a failure nacks it for redelivery. Messages that are not
+ * valid transactions are acked and dropped since they can never succeed. With
+ * message ordering enabled on the subscription, a card's messages arrive in
+ * order and the lane keeps them in that order while other cards run in
+ * parallel.
+ */
+public class PullIngestion implements MessageReceiver {
+
+  private static final Logger logger = LoggerFactory.getLogger(PullIngestion.class);
+  private static final RateLimitedLogger failureLog = new RateLimitedLogger(logger, 1, TimeUnit.SECONDS);
+
+  private final AgentCaller agentCaller;
+
+  private PullIngestion(AgentCaller agentCaller) {
+    this.agentCaller = agentCaller;
+  }
+
+  /**
+   * Starts pulling from the subscription, given as
+   * projects/PROJECT/subscriptions/SUBSCRIPTION.
+   */
+  public static Subscriber start(String subscription, AgentCaller agentCaller, long maxOutstandingMessages) {
+    FlowControlSettings flowControl = FlowControlSettings.newBuilder()
+        .setMaxOutstandingElementCount(maxOutstandingMessages)
+        .setMaxOutstandingRequestBytes(Config.getLong("PULL_MAX_OUTSTANDING_BYTES", 100_000_000))
+        .setLimitExceededBehavior(LimitExceededBehavior.Block)
+        .build();
+    Subscriber.Builder builder = Subscriber.newBuilder(ProjectSubscriptionName.parse(subscription),
+            new PullIngestion(agentCaller))
+        .setFlowControlSettings(flowControl)
+        .setParallelPullCount(Config.getInt("PULL_STREAMS", 1))
+        // The receiver only hands messages to the scheduler, so few threads are needed.
+        .setExecutorProvider(InstantiatingExecutorProvider.newBuilder().setExecutorThreadCount(4).build());
+    String emulatorHost = Config.getString("PUBSUB_EMULATOR_HOST", null);
+    if (emulatorHost != null) {
+      builder.setChannelProvider(FixedTransportChannelProvider.create(
+              GrpcTransportChannel.create(ManagedChannelBuilder.forTarget(emulatorHost).usePlaintext().build())))
+          .setCredentialsProvider(NoCredentialsProvider.create());
+    }
+    Subscriber subscriber = builder.build();
+    subscriber.startAsync().awaitRunning();
+    logger.info("Pulling transactions from {}", subscription);
+    return subscriber;
+  }
+
+  /** Stops pulling and waits briefly for messages being scored to be acked. */
+  public static void stop(Subscriber subscriber) {
+    try {
+      subscriber.stopAsync().awaitTerminated(30, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      logger.warn("Subscriber did not stop in time", e);
+    }
+  }
+
+  @Override
+  public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) {
+    long start = System.nanoTime();
+    Metrics.REQUESTS.increment();
+    Metrics.IN_FLIGHT.incrementAndGet();
+    agentCaller.submitRequest(message.getData().toStringUtf8(), message.getMessageId()).whenComplete((result, error) -> {
+      Metrics.IN_FLIGHT.decrementAndGet();
+      Metrics.REQUEST.recordSince(start);
+      Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+      if (cause == null) {
+        consumer.ack();
+      } else if (cause instanceof IllegalArgumentException) {
+        Metrics.CLIENT_ERRORS.increment();
+        failureLog.warn("Dropping message {}: {}", message.getMessageId(), cause.getMessage());
+        consumer.ack();
+      } else {
+        Metrics.ERRORS.increment();
+        failureLog.error("Could not score message {}", message.getMessageId(), cause);
+        consumer.nack();
+      }
+    });
+  }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Logs at most one message per interval and counts the rest, so a failure
+ * that hits every request cannot flood the log or slow the requests down.
+ * The next message that gets through reports how many were suppressed.
+ */
+public class RateLimitedLogger {
+
+  private final Logger logger;
+  private final long intervalNanos;
+  private final AtomicLong nextAllowedNanos = new AtomicLong(System.nanoTime());
+  private final AtomicLong suppressed = new AtomicLong();
+
+  public RateLimitedLogger(Logger logger, long interval, TimeUnit unit) {
+    this.logger = logger;
+    this.intervalNanos = unit.toNanos(interval);
+  }
+
+  public void debug(String format, Object... args) {
+    if (logger.isDebugEnabled() && allow()) {
+      logger.debug(withSuppressed(format), withSuppressed(args));
+    }
+  }
+
+  public void info(String format, Object... args) {
+    if (logger.isInfoEnabled() && allow()) {
+      logger.info(withSuppressed(format), withSuppressed(args));
+    }
+  }
+
+  public void warn(String format, Object... args) {
+    if (logger.isWarnEnabled() && allow()) {
+      logger.warn(withSuppressed(format), withSuppressed(args));
+    }
+  }
+
+  public void error(String format, Object... args) {
+    if (logger.isErrorEnabled() && allow()) {
+      logger.error(withSuppressed(format), withSuppressed(args));
+    }
+  }
+
+  private boolean allow() {
+    long now = System.nanoTime();
+    long next = nextAllowedNanos.get();
+    if (now - next >= 0 && nextAllowedNanos.compareAndSet(next, now + intervalNanos)) {
+      return true;
+    }
+    suppressed.incrementAndGet();
+    return false;
+  }
+
+  // The suppressed count is appended as the last argument so that a trailing
+  // Throwable is still logged with its stack trace.
+  private static String withSuppressed(String format) {
+    return format + " [{} similar messages suppressed]";
+  }
+
+  private Object[] withSuppressed(Object[] args) {
+    Object[] all = new Object[args.length + 1];
+    int last = args.length - 1;
+    if (last >= 0 && args[last] instanceof Throwable) {
+      System.arraycopy(args, 0, all, 0, last);
+      all[last] = suppressed.getAndSet(0);
+      all[last + 1] = args[last];
+    } else {
+      System.arraycopy(args, 0, all, 0, args.length);
+      all[args.length] = suppressed.getAndSet(0);
+    }
+    return all;
+  }
+}
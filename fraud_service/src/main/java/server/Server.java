@@ -1,5 +1,7 @@
 package server;
 
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.gson.JsonObject;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -9,60 +11,319 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import agents.fraudagent.FraudAgent;
+import config.Config;
 
 /**
  * A simple Java HTTP server. This code was generated by Gemini.
+ *
+ * <p>Up to MAX_CONCURRENT_REQUESTS requests are scored concurrently, one at
+ * a time per card and in arrival order. Up to MAX_QUEUED_REQUESTS more may
+ * wait; beyond that the server answers 503 with a Retry-After header right
+ * away so Pub/Sub backs off instead of timing out the push. Requests only
+ * hold one of the WORKER_THREADS workers while they are computing, not
+ * while the model is working, so the concurrency limit can be far larger
+ * than the number of threads.
+ *
+ * <p>/messages takes many transactions at once as newline-delimited JSON and
+ * scores those that need the model in shared calls. Each transaction counts
+ * against the same limits as a single request.
+ *
+ * <p>/metrics reports stage latencies and counters in the Prometheus text
+ * format.
  */
 public class Server {
-    private static AgentCaller agentCaller = new AgentCaller();
+    private static final int DISPATCH_THREADS = 4;
+    private static final Logger logger = LoggerFactory.getLogger(Server.class);
+    private static final RateLimitedLogger failureLog = new RateLimitedLogger(logger, 1, TimeUnit.SECONDS);
+
     public static void main(String[] args) throws IOException {
-        int port = 8080;
+        int port = Config.getInt("PORT", 8080);
+        int maxConcurrent = Config.getInt("MAX_CONCURRENT_REQUESTS", 64);
+        int maxQueued = Config.getInt("MAX_QUEUED_REQUESTS", 256);
+        AgentCaller agentCaller = new AgentCaller(newWorkerPool(), maxConcurrent);
+        start(port, agentCaller, maxConcurrent + maxQueued);
 
+        logger.info("Server started. Listening on port {}", port);
+        logger.info("Access: http://localhost:{}/message", port);
+
+        // In pull mode transactions are also read from a subscription. The HTTP
+        // endpoint stays up, which Cloud Run needs in any case.
+        Subscriber subscriber = null;
+        if ("pull".equals(Config.getString("INGESTION_MODE", "push"))) {
+            String subscription = Config.getString("SUBSCRIPTION", null);
+            if (subscription == null) {
+                throw new IllegalStateException("INGESTION_MODE=pull requires SUBSCRIPTION to be set");
+            }
+            subscriber = PullIngestion.start(subscription, agentCaller,
+                    Config.getLong("PULL_MAX_OUTSTANDING_MESSAGES", maxConcurrent + maxQueued));
+        }
+
+        // Stop taking messages, then flush records that are still being
+        // batched and snapshot the cards' features when Cloud Run stops us.
+        Subscriber pulling = subscriber;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (pulling != null) {
+                PullIngestion.stop(pulling);
+            }
+            FraudAgent.shutdownPublisher();
+            agentCaller.saveState();
+        }));
+    }
+
+    /**
+     * Creates and starts the server with its own worker pool. Returns it so
+     * callers such as the load test can stop it again.
+     */
+    public static HttpServer start(int port, int maxConcurrent, int maxQueued) throws IOException {
+        return start(port, new AgentCaller(newWorkerPool(), maxConcurrent), maxConcurrent + maxQueued);
+    }
+
+    /** Creates the pool that runs the CPU-bound part of scoring, one thread per core by default. */
+    private static ExecutorService newWorkerPool() {
+        return Executors.newFixedThreadPool(
+                Config.getInt("WORKER_THREADS", Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates and starts the server. At most maxAdmitted requests are running
+     * or waiting at once.
+     */
+    public static HttpServer start(int port, AgentCaller agentCaller, int maxAdmitted) throws IOException {
         // 1. Create an HttpServer instance
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
         // 2. Create a "context" for the /message URL, linking it to a handler
-        server.createContext("/message", new MessageHandler());
+        Semaphore admissions = new Semaphore(maxAdmitted);
+        server.createContext("/message", new MessageHandler(agentCaller, admissions));
+        server.createContext("/messages", new BatchHandler(agentCaller, admissions, maxAdmitted));
+        server.createContext("/metrics", new MetricsHandler(agentCaller));
 
-        // 3. Set a default executor (optional, good practice)
-        server.setExecutor(Executors.newSingleThreadExecutor());
+        // 3. Exchanges are dispatched on a few threads that only read the body
+        // and hand it to the workers, so overload is answered without delay.
+        server.setExecutor(Executors.newFixedThreadPool(DISPATCH_THREADS));
 
         // 4. Start the server
         server.start();
+        return server;
+    }
 
-        System.out.println("Server started. Listening on port " + port);
-        System.out.println("Access: http://localhost:" + port + "/message");
+    /** Records a request as answered and frees its admission permits. */
+    private static void finish(Semaphore admissions, long start, int permits) {
+        Metrics.REQUEST.recordSince(start);
+        Metrics.IN_FLIGHT.addAndGet(-permits);
+        admissions.release(permits);
     }
 
     /**
      * This inner class handles all requests for the /message context.
      */
     static class MessageHandler implements HttpHandler {
+        private static final String RETRY_AFTER_SECONDS = Config.getString("RETRY_AFTER_SECONDS", "1");
+
+        private final AgentCaller agentCaller;
+        // One permit per request that is either running or waiting for a worker.
+        private final Semaphore admissions;
+
+        MessageHandler(AgentCaller agentCaller, Semaphore admissions) {
+            this.agentCaller = agentCaller;
+            this.admissions = admissions;
+        }
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if ("POST".equals(exchange.getRequestMethod())) {
-              // Get the request body as an InputStream
-                    InputStream is = exchange.getRequestBody();
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                // Send "405 Method Not Allowed" for other request types
+                exchange.sendResponseHeaders(405, -1); // -1 means no response body
+                exchange.close();
+                return;
+            }
+            if (!admissions.tryAcquire()) {
+                rejectOverloaded(exchange);
+                return;
+            }
+            long start = System.nanoTime();
+            Metrics.REQUESTS.increment();
+            Metrics.IN_FLIGHT.incrementAndGet();
+            try {
+                // Get the request body as an InputStream
+                InputStream is = exchange.getRequestBody();
+
+                // Read all bytes from the stream into a string
+                String requestBody = new String(is.readAllBytes(), StandardCharsets.UTF_8);
 
-                    // Read all bytes from the stream into a string
-                    String requestBody = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+                // Set by push subscriptions that unwrap the payload and write its metadata.
+                String messageId = exchange.getRequestHeaders().getFirst("x-goog-pubsub-message-id");
+                agentCaller.submitRequest(requestBody, messageId).whenComplete((result, error) -> {
+                    try {
+                        respond(exchange, result, error);
+                    } finally {
+                        finish(admissions, start, 1);
+                    }
+                });
+            } catch (IOException e) {
+                finish(admissions, start, 1);
+                throw e;
+            }
+        }
 
-                // This is the response body
-                String responseBody = agentCaller.executeRequest(requestBody);
+        private static void respond(HttpExchange exchange, String result, Throwable error) {
+            try {
+                Response response = encode(result, error);
 
-                // Set response headers (HTTP 200 OK)
-                exchange.sendResponseHeaders(200, responseBody.getBytes(StandardCharsets.UTF_8).length);
+                // Set response headers
+                long writeStart = System.nanoTime();
+                exchange.sendResponseHeaders(response.status(), response.body().length);
 
                 // Get the output stream to write the response
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(responseBody.getBytes(StandardCharsets.UTF_8));
+                    os.write(response.body());
+                }
+                Metrics.RESPONSE_WRITE.recordSince(writeStart);
+            } catch (IOException e) {
+                failureLog.warn("Could not write response", e);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /** The status and body of a /message response. */
+        record Response(int status, byte[] body) {}
+
+        /** Encodes the scored transaction, or why it could not be scored, as the response. */
+        static Response encode(String result, Throwable error) {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                return new Response(200, result.getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] message = String.valueOf(cause.getMessage()).getBytes(StandardCharsets.UTF_8);
+            if (cause instanceof IllegalArgumentException) {
+                // Retrying will not help, so tell Pub/Sub not to.
+                Metrics.CLIENT_ERRORS.increment();
+                return new Response(400, message);
+            }
+            Metrics.ERRORS.increment();
+            failureLog.error("Could not score transaction", cause);
+            return new Response(500, message);
+        }
+
+        private static void rejectOverloaded(HttpExchange exchange) throws IOException {
+            Metrics.REJECTED.increment();
+            exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        }
+    }
+
+    /**
+     * Handles /messages: one transaction per line in, one scored transaction
+     * per line out in the same order. A line that could not be scored gets
+     * an {"error": ...} object instead. The batch is admitted whole or not at
+     * all.
+     */
+    static class BatchHandler implements HttpHandler {
+        private final AgentCaller agentCaller;
+        private final Semaphore admissions;
+        private final int maxAdmitted;
+
+        BatchHandler(AgentCaller agentCaller, Semaphore admissions, int maxAdmitted) {
+            this.agentCaller = agentCaller;
+            this.admissions = admissions;
+            this.maxAdmitted = maxAdmitted;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            for (String line : requestBody.split("\n")) {
+                if (!line.isBlank()) {
+                    lines.add(line);
+                }
+            }
+            if (lines.size() > maxAdmitted) {
+                // Could never be admitted, so retrying will not help.
+                exchange.sendResponseHeaders(413, -1);
+                exchange.close();
+                return;
+            }
+            if (!admissions.tryAcquire(lines.size())) {
+                MessageHandler.rejectOverloaded(exchange);
+                return;
+            }
+            long start = System.nanoTime();
+            Metrics.REQUESTS.add(lines.size());
+            Metrics.IN_FLIGHT.addAndGet(lines.size());
+            List<CompletableFuture<String>> results = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                results.add(agentCaller.submitBatched(line)
+                        .handle((result, error) -> error == null ? result : errorLine(error)));
+            }
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+                try {
+                    StringBuilder response = new StringBuilder();
+                    for (CompletableFuture<String> result : results) {
+                        response.append(result.join()).append('\n');
+                    }
+                    MessageHandler.respond(exchange, response.toString(), null);
+                } finally {
+                    finish(admissions, start, lines.size());
                 }
+            });
+        }
 
+        private static String errorLine(Throwable error) {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof IllegalArgumentException) {
+                Metrics.CLIENT_ERRORS.increment();
             } else {
-                // Send "405 Method Not Allowed" for other request types
-                exchange.sendResponseHeaders(405, -1); // -1 means no response body
+                Metrics.ERRORS.increment();
+                failureLog.error("Could not score transaction", cause);
+            }
+            JsonObject line = new JsonObject();
+            line.addProperty("error", String.valueOf(cause.getMessage()));
+            return line.toString();
+        }
+    }
+
+    /** Serves the metrics in the Prometheus text format. */
+    static class MetricsHandler implements HttpHandler {
+        private final AgentCaller agentCaller;
+
+        MetricsHandler(AgentCaller agentCaller) {
+            this.agentCaller = agentCaller;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            byte[] responseBody = Metrics.render(agentCaller).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, responseBody.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(responseBody);
             }
         }
     }
-}
\ No newline at end of file
+}
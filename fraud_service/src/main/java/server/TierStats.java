@@ -0,0 +1,54 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Latency and outcomes of one tier of the scoring cascade, for /metrics. */
+final class TierStats {
+
+  private final String tier;
+  private final LatencyHistogram latency;
+  private final LongAdder scored = new LongAdder();
+  private final LongAdder escalated = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+
+  TierStats(String tier) {
+    this.tier = tier;
+    this.latency = new LatencyHistogram(tier);
+  }
+
+  String tier() {
+    return tier;
+  }
+
+  LatencyHistogram latency() {
+    return latency;
+  }
+
+  /** Records a transaction the tier scored, and whether it passed it on. */
+  void recordScored(long startNanos, boolean escalate) {
+    latency.recordSince(startNanos);
+    scored.increment();
+    if (escalate) {
+      escalated.increment();
+    }
+  }
+
+  /** Records a transaction the tier could not score, which is passed on. */
+  void recordFailed(long startNanos) {
+    latency.recordSince(startNanos);
+    failed.increment();
+    escalated.increment();
+  }
+
+  long scoredCount() {
+    return scored.sum();
+  }
+
+  long escalatedCount() {
+    return escalated.sum();
+  }
+
+  long failedCount() {
+    return failed.sum();
+  }
+}
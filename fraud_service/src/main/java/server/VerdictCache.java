@@ -0,0 +1,106 @@
+package server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import config.Config;
+
+/**
+ * Remembers the answer to each transaction for a while, so that a
+ * redelivered transaction is answered with it instead of being scored,
+ * added to the card's session and published again. A duplicate that arrives
+ * while the original is still being scored waits for the same answer.
+ * Failures are not remembered, so a redelivery after one is scored afresh.
+ *
+ * <p>A transaction is identified by its message id when the caller has one,
+ * otherwise by its card number, timestamp, amount and receiver.
+ */
+final class VerdictCache {
+
+  // Null when the cache is off.
+  private final Cache<String, CompletableFuture<String>> verdicts;
+  private final LongAdder answered = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+
+  /**
+   * @param maxTransactions transactions whose answers are kept; 0 turns the cache off
+   * @param ttlSeconds how long an answer is kept after scoring started
+   */
+  VerdictCache(long maxTransactions, long ttlSeconds) {
+    verdicts = maxTransactions <= 0 ? null : CacheBuilder.newBuilder()
+        .maximumSize(maxTransactions)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  static VerdictCache fromConfig() {
+    return new VerdictCache(Config.getLong("VERDICT_CACHE_SIZE", 50_000),
+        Config.getLong("VERDICT_CACHE_TTL_SECONDS", 600));
+  }
+
+  /**
+   * Returns the answer for the transaction: the one already given or being
+   * worked out for it, or else the one the scorer starts.
+   *
+   * @param messageId the transaction's message id, or null if it has none
+   */
+  CompletableFuture<String> get(String messageId, JsonObject transaction,
+      Supplier<CompletableFuture<String>> scorer) {
+    if (verdicts == null) {
+      return scorer.get();
+    }
+    String key = messageId != null ? "id:" + messageId : fingerprint(transaction);
+    boolean[] started = new boolean[1];
+    CompletableFuture<String> verdict;
+    try {
+      verdict = verdicts.get(key, () -> {
+        started[0] = true;
+        return scorer.get();
+      });
+    } catch (ExecutionException e) {
+      return CompletableFuture.failedFuture(e.getCause());
+    }
+    if (started[0]) {
+      // Only now is the verdict in the cache for a failure to remove it.
+      verdict.whenComplete((result, error) -> {
+        if (error != null) {
+          verdicts.asMap().remove(key, verdict);
+        }
+      });
+    } else if (verdict.isDone()) {
+      answered.increment();
+    } else {
+      coalesced.increment();
+    }
+    return verdict;
+  }
+
+  /** Returns how many duplicates were answered with an earlier answer. */
+  long answeredCount() {
+    return answered.sum();
+  }
+
+  /** Returns how many duplicates waited for the answer to a transaction still being scored. */
+  long coalescedCount() {
+    return coalesced.sum();
+  }
+
+  /** Returns how many answers are held. */
+  long size() {
+    return verdicts == null ? 0 : verdicts.size();
+  }
+
+  private static String fingerprint(JsonObject transaction) {
+    return "txn:" + transaction.get("credit_card_number").getAsString()
+        + '|' + transaction.get("timestamp")
+        + '|' + transaction.get("amount")
+        + '|' + transaction.get("receiver");
+  }
+}